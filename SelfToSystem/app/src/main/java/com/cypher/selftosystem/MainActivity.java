@@ -7,13 +7,12 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
+import com.cypher.selftosystem.SystemAppUtilities.Status;
+import com.cypher.selftosystem.SystemAppUtilities.StatusListener;
 import com.cypher.selftosystem.SystemAppUtilities.SystemAppUtilitiesException;
 import com.stericson.RootShell.exceptions.RootDeniedException;
 import com.stericson.RootShell.execution.Command;
@@ -34,6 +33,13 @@ public class MainActivity extends Activity {
 
 	private SharedPreferences pref;
 
+	private final StatusListener statusListener = new StatusListener() {
+		@Override
+		public void onStatusChanged(Status status) {
+			showStatus(status);
+		}
+	};
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -56,133 +62,173 @@ public class MainActivity extends Activity {
 		btn_refreshData.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_refreshData))) {
-					try {
-						refreshData();
-					} catch (SystemAppUtilitiesException e) {
-						errorDialog(e.getMessage());
+				okCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_refreshData), new Runnable() {
+					@Override
+					public void run() {
+						SystemAppUtilities.refreshStatus();
 					}
-				}
+				});
 			}
 		});
 
 		btn_gainRootAccess.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_gainRootAccess))) {
-					try {
-						SystemAppUtilities.gainRootAccess();
-					} catch (SystemAppUtilitiesException e) {
-						errorDialog(e.getMessage());
+				okCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_gainRootAccess), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SystemAppUtilities.gainRootAccess();
+						} catch (SystemAppUtilitiesException e) {
+							errorDialog(e.getMessage());
+						}
 					}
-				}
+				});
 			}
 		});
 
 		btn_installAsSystemApp.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_installAsSystemApp))) {
-					try {
-						SystemAppUtilities.installAsSystemApp(MainActivity.this, true);
-					} catch (SystemAppUtilitiesException e) {
-						errorDialog(e.getMessage());
+				okCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_installAsSystemApp), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SystemAppUtilities.installAsSystemApp(MainActivity.this, true);
+						} catch (SystemAppUtilitiesException e) {
+							errorDialog(e.getMessage());
+						}
 					}
-				}
+				});
 			}
 		});
 
 		btn_uninstallSystemApp.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_uninstallSystemApp))) {
-					try {
-						SystemAppUtilities.uninstallSystemApp(MainActivity.this, true);
-					} catch (SystemAppUtilitiesException e) {
-						errorDialog(e.getMessage());
+				okCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_uninstallSystemApp), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SystemAppUtilities.uninstallSystemApp(MainActivity.this, true);
+						} catch (SystemAppUtilitiesException e) {
+							errorDialog(e.getMessage());
+						}
 					}
-				}
+				});
 			}
 		});
 
 		btn_uninstallUserApp.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_uninstallUserApp))) {
-					try {
-						SystemAppUtilities.uninstallUserApp(MainActivity.this);
-					} catch (SystemAppUtilitiesException e) {
-						errorDialog(e.getMessage());
+				okCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_uninstallUserApp), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SystemAppUtilities.uninstallUserApp(MainActivity.this);
+						} catch (SystemAppUtilitiesException e) {
+							errorDialog(e.getMessage());
+						}
 					}
-				}
+				});
 			}
 		});
 
 		btn_clearAppData.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_clearAppData))) {
-					try {
-						SystemAppUtilities.clearAppData(MainActivity.this);
-					} catch (SystemAppUtilitiesException e) {
-						errorDialog(e.getMessage());
+				okCancelDialog(getString(R.string.msg_header_warning), getString(R.string.msg_clearAppData), new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SystemAppUtilities.clearAppData(MainActivity.this);
+						} catch (SystemAppUtilitiesException e) {
+							errorDialog(e.getMessage());
+						}
 					}
-				}
+				});
 			}
 		});
 
 		btn_softReboot.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_reboot))) {
-					SystemAppUtilities.rebootDevice(MainActivity.this, true);
-				}
+				okCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_reboot), new Runnable() {
+					@Override
+					public void run() {
+						SystemAppUtilities.rebootDevice(MainActivity.this, true);
+					}
+				});
 			}
 		});
 
 		btn_reboot.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				if (blockingOkCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_reboot))) {
-					SystemAppUtilities.rebootDevice(MainActivity.this, false);
-				}
+				okCancelDialog(getString(R.string.msg_header_info), getString(R.string.msg_reboot), new Runnable() {
+					@Override
+					public void run() {
+						SystemAppUtilities.rebootDevice(MainActivity.this, false);
+					}
+				});
 			}
 		});
 
-		if (pref.getBoolean(DESCRIPTION, true)) {
-			pref.edit().putBoolean(DESCRIPTION, false).apply();
+		// The status is pushed whenever it changes, so there's no need to probe anything on resume
+		SystemAppUtilities.subscribeStatus(MainActivity.this, statusListener);
 
-			if (!blockingTwoButtonDialog(getString(R.string.app_name), getString(R.string.msg_first_start), getString(R.string.button_close), getString(R.string.button_github))) {
-				Uri uri = Uri.parse("https://github.com/Cypher01/SelfToSystem");
-				Intent intent = new Intent(Intent.ACTION_VIEW, uri);
-				startActivity(intent);
-			}
-		}
+		final boolean rootAvailable = SystemAppUtilities.isRootAvailable();
 
-		if (!SystemAppUtilities.isRootAvailable()) {
+		if (!rootAvailable) {
 			btn_gainRootAccess.setEnabled(false);
 			btn_installAsSystemApp.setEnabled(false);
 			btn_uninstallSystemApp.setEnabled(false);
 			btn_uninstallUserApp.setEnabled(false);
 			btn_clearAppData.setEnabled(false);
+		}
 
-			errorDialog(getString(R.string.msg_root_unavailable));
+		final Runnable checkRoot = new Runnable() {
+			@Override
+			public void run() {
+				if (!rootAvailable) {
+					errorDialog(getString(R.string.msg_root_unavailable));
+				} else if (SystemAppUtilities.hasInterruptedOperation(MainActivity.this)) {
+					SystemAppUtilities.recoverInterruptedOperation(MainActivity.this);
+				}
+			}
+		};
+
+		if (pref.getBoolean(DESCRIPTION, true)) {
+			pref.edit().putBoolean(DESCRIPTION, false).apply();
+
+			// Show the root error or recover, if necessary, only after the description has been closed
+			twoButtonDialog(getString(R.string.app_name), getString(R.string.msg_first_start), getString(R.string.button_close), getString(R.string.button_github), checkRoot, new Runnable() {
+				@Override
+				public void run() {
+					Uri uri = Uri.parse("https://github.com/Cypher01/SelfToSystem");
+					Intent intent = new Intent(Intent.ACTION_VIEW, uri);
+					startActivity(intent);
+					checkRoot.run();
+				}
+			}, checkRoot);
+		} else {
+			checkRoot.run();
 		}
 	}
 
 	@Override
-	protected void onResume() {
-		super.onResume();
+	protected void onDestroy() {
+		super.onDestroy();
 
-		try {
-			refreshData();
-		} catch (SystemAppUtilitiesException e) {
-			e.printStackTrace();
-		}
+		SystemAppUtilities.unsubscribeStatus(statusListener);
 	}
 
-	private void refreshData() throws SystemAppUtilitiesException {
-		if (SystemAppUtilities.isRootAvailable()) {
+	private void showStatus(Status status) {
+		if (status.rootBreakerState == SystemAppUtilities.BreakerState.OPEN) {
+			tv_rootAvailable.setText(getString(R.string.root_denied));
+			tv_rootAvailable.setTextColor(0xffff4444); // @android:color/holo_red_light
+		} else if (status.rootAvailable) {
 			tv_rootAvailable.setText(getString(R.string.root_available));
 			tv_rootAvailable.setTextColor(0xff99cc00); // @android:color/holo_green_light
 		} else {
@@ -190,69 +236,59 @@ public class MainActivity extends Activity {
 			tv_rootAvailable.setTextColor(0xffff4444); // @android:color/holo_red_light
 		}
 
-		tv_userApp.setText(SystemAppUtilities.getApkInfos(MainActivity.this, false));
-		tv_systemApp.setText(SystemAppUtilities.getApkInfos(MainActivity.this, true));
+		tv_userApp.setText(status.userAppInfo);
+		tv_systemApp.setText(status.systemAppInfo);
 	}
 
-	public boolean blockingOkCancelDialog(String title, String message) {
-		return blockingTwoButtonDialog(title, message, getString(R.string.button_ok), getString(R.string.button_cancel));
+	/**
+	 * Shows an OK/Cancel dialog and returns right away
+	 *
+	 * @param title dialog title
+	 * @param message dialog message
+	 * @param onOk action to be run on the main thread if OK is chosen
+	 */
+	public void okCancelDialog(String title, String message, Runnable onOk) {
+		twoButtonDialog(title, message, getString(R.string.button_ok), getString(R.string.button_cancel), onOk, null, null);
 	}
 
-	public boolean blockingTwoButtonDialog(String title, String message, String button1, String button2) {
-		final boolean[] mResult = new boolean[1]; // for whatever reason, IntelliJ suggested to use an array
-
-		final Handler handler = new Handler() {
-			@Override
-			public void handleMessage(Message mesg) {
-				throw new RuntimeException();
-			}
-		};
-
+	/**
+	 * Shows a dialog with two buttons and returns right away
+	 * The chosen action is run on the main thread
+	 *
+	 * @param title dialog title
+	 * @param message dialog message
+	 * @param button1 text of the first button
+	 * @param button2 text of the second button
+	 * @param onButton1 action for the first button, null for none
+	 * @param onButton2 action for the second button, null for none
+	 * @param onCancel action if the dialog is cancelled by back or by tapping outside, null for none
+	 */
+	public void twoButtonDialog(String title, String message, String button1, String button2, final Runnable onButton1, final Runnable onButton2, final Runnable onCancel) {
 		AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
 		builder.setTitle(title)
 				.setMessage(message)
 				.setPositiveButton(button1, new DialogInterface.OnClickListener() {
 					public void onClick(DialogInterface dialog, int whichButton) {
-						mResult[0] = true;
-						handler.sendMessage(handler.obtainMessage());
+						run(onButton1);
 					}
 				})
-						.setNegativeButton(button2, new DialogInterface.OnClickListener() {
+				.setNegativeButton(button2, new DialogInterface.OnClickListener() {
 					public void onClick(DialogInterface dialog, int whichButton) {
-						mResult[0] = false;
-						handler.sendMessage(handler.obtainMessage());
+						run(onButton2);
+					}
+				})
+				.setOnCancelListener(new DialogInterface.OnCancelListener() {
+					public void onCancel(DialogInterface dialog) {
+						run(onCancel);
 					}
 				})
 				.show();
-
-		try { Looper.loop(); } catch (RuntimeException ignored) { }
-
-		return mResult[0];
 	}
 
-	public boolean blockingOneButtonDialog(String button, String title, String message) {
-		final boolean[] mResult = new boolean[1]; // for whatever reason, IntelliJ suggested to use an array
-
-		final Handler handler = new Handler() {
-			@Override
-			public void handleMessage(Message mesg) {
-				throw new RuntimeException();
-			}
-		};
-
-		AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
-		builder.setTitle(title)
-				.setMessage(message)
-				.setNeutralButton(button, new DialogInterface.OnClickListener() {
-					public void onClick(DialogInterface dialog, int whichButton) {
-						mResult[0] = true;
-						handler.sendMessage(handler.obtainMessage());
-					}
-				}).show();
-
-		try { Looper.loop(); } catch (RuntimeException ignored) { }
-
-		return mResult[0];
+	private static void run(Runnable action) {
+		if (action != null) {
+			action.run();
+		}
 	}
 
 	private void errorDialog(String message) {
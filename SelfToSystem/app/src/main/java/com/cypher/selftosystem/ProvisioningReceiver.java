@@ -0,0 +1,32 @@
+package com.cypher.selftosystem;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * ProvisioningReceiver, created by Cypher
+ *
+ * Lets an MDM agent trigger the ProvisioningService, with the same action and extras
+ * The service itself only accepts the adb shell, a device owner app can't hold the DUMP permission
+ * This receiver is protected by a signature permission instead, so only agents signed with the same key as this app
+ * can use it, e.g. an in-house MDM agent. Third party MDMs aren't supported.
+ *
+ * Example, from the agent:
+ * sendBroadcast(new Intent("com.cypher.selftosystem.action.PROVISION")
+ *     .setClassName("com.cypher.selftosystem", "com.cypher.selftosystem.ProvisioningReceiver")
+ *     .putExtra("operations", "INSTALL_SYSTEM_APP").putExtra("id", "station1-42"));
+ */
+public class ProvisioningReceiver extends BroadcastReceiver {
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (!ProvisioningService.ACTION_PROVISION.equals(intent.getAction())) {
+			return;
+		}
+
+		// The app may always start its own service, regardless of the permission protecting it
+		Intent service = new Intent(intent);
+		service.setClass(context, ProvisioningService.class);
+		context.startService(service);
+	}
+}
@@ -0,0 +1,438 @@
+package com.cypher.selftosystem;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+import com.cypher.selftosystem.SystemAppUtilities.BatchResult;
+import com.cypher.selftosystem.SystemAppUtilities.IoPolicy;
+import com.cypher.selftosystem.SystemAppUtilities.Operation;
+import com.cypher.selftosystem.SystemAppUtilities.OperationResult;
+import com.cypher.selftosystem.SystemAppUtilities.Plan;
+import com.cypher.selftosystem.SystemAppUtilities.Step;
+import com.cypher.selftosystem.SystemAppUtilities.SystemAppUtilitiesException;
+import com.cypher.selftosystem.SystemAppUtilities.TransferStats;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProvisioningService, created by Cypher
+ *
+ * Headless entry point to run SystemAppUtilities operations without any UI, e.g. driven by adb or an MDM
+ * The service is protected by the DUMP permission, which the adb shell holds
+ * MDM agents signed with the same key can use ProvisioningReceiver instead, other MDMs aren't supported
+ *
+ * Example:
+ * adb shell am startservice -n com.cypher.selftosystem/.ProvisioningService -a com.cypher.selftosystem.action.PROVISION \
+ *     --es operations INSTALL_SYSTEM_APP,CLEAR_APP_DATA --es id station1-42 --es reboot soft
+ *
+ * Extras:
+ * operations: comma separated list of SystemAppUtilities.Operation names, run in the given order
+ * install_apps: comma separated list of package names or APK paths to be installed as system apps in one batch,
+ *     run after the operations
+ * backup: back up the app data to provisioning/[id].tar.gz before anything else, default false,
+ *     refused if there is no external storage, as the backup can't be written into the data it backs up
+ * restore_from: path of a backup the app data is restored from after everything else, default none
+ * overwrite: overwrite an existing system app, default true
+ * keep_user_app: keep the user app when uninstalling the system app, default true
+ * continue_on_error: run the remaining operations after a failed one, default false
+ * reboot: "soft" or "full" to reboot after all operations succeeded, default none
+ * low_io_priority: copy and delete app files with the lowest I/O and CPU priority, default false
+ * max_bytes_per_s: cap for copying APKs in bytes per second, default none
+ * dry_run: only plan the operations and report their steps and estimated costs, nothing else is done, default false,
+ *     root isn't asked for, except for probes reported in the plan, like looking into /data/adb for Magisk
+ * id: request id, echoed in the result and used for the result file name, default the start time
+ *
+ * An operation interrupted before, e.g. by a crash or reboot, is always recovered first
+ *
+ * The result is written as JSON to Android/data/[package]/files/provisioning/[id].json on the external storage,
+ * so it can be pulled without root, and it is logged as a single line with the tag SelfToSystem-Provisioning
+ */
+public class ProvisioningService extends IntentService {
+	private static final String TAG = MainActivity.TAG + "-Provisioning";
+
+	public static final String ACTION_PROVISION = BuildConfig.APPLICATION_ID + ".action.PROVISION";
+
+	public static final String EXTRA_OPERATIONS = "operations";
+	public static final String EXTRA_INSTALL_APPS = "install_apps";
+	public static final String EXTRA_BACKUP = "backup";
+	public static final String EXTRA_RESTORE_FROM = "restore_from";
+	public static final String EXTRA_OVERWRITE = "overwrite";
+	public static final String EXTRA_KEEP_USER_APP = "keep_user_app";
+	public static final String EXTRA_CONTINUE_ON_ERROR = "continue_on_error";
+	public static final String EXTRA_REBOOT = "reboot";
+	public static final String EXTRA_LOW_IO_PRIORITY = "low_io_priority";
+	public static final String EXTRA_MAX_BYTES_PER_S = "max_bytes_per_s";
+	public static final String EXTRA_DRY_RUN = "dry_run";
+	public static final String EXTRA_ID = "id";
+
+	public static final String REBOOT_SOFT = "soft";
+	public static final String REBOOT_FULL = "full";
+
+	public ProvisioningService() {
+		super(ProvisioningService.class.getSimpleName());
+		setIntentRedelivery(false); // never repeat destructive operations on its own
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if ((intent == null) || !ACTION_PROVISION.equals(intent.getAction())) {
+			return;
+		}
+
+		long startedAt = System.currentTimeMillis();
+		long start = SystemClock.elapsedRealtime();
+
+		String id = intent.getStringExtra(EXTRA_ID);
+
+		if ((id == null) || id.isEmpty()) {
+			id = String.valueOf(startedAt);
+		}
+
+		String operations = intent.getStringExtra(EXTRA_OPERATIONS);
+		String installApps = intent.getStringExtra(EXTRA_INSTALL_APPS);
+		boolean backup = intent.getBooleanExtra(EXTRA_BACKUP, false);
+		String restoreFrom = intent.getStringExtra(EXTRA_RESTORE_FROM);
+		boolean overwrite = intent.getBooleanExtra(EXTRA_OVERWRITE, true);
+		boolean keepUserApp = intent.getBooleanExtra(EXTRA_KEEP_USER_APP, true);
+		boolean continueOnError = intent.getBooleanExtra(EXTRA_CONTINUE_ON_ERROR, false);
+		String reboot = intent.getStringExtra(EXTRA_REBOOT);
+		boolean dryRun = intent.getBooleanExtra(EXTRA_DRY_RUN, false);
+		IoPolicy ioPolicy = new IoPolicy(intent.getBooleanExtra(EXTRA_LOW_IO_PRIORITY, false), intent.getLongExtra(EXTRA_MAX_BYTES_PER_S, 0));
+
+		if (dryRun) {
+			// Planning changes nothing, so anything that can't be planned is left out
+			installApps = null;
+			backup = false;
+			restoreFrom = null;
+			reboot = null;
+		}
+
+		if (SystemAppUtilities.hasInterruptedOperation(this)) {
+			operations = Operation.RECOVER_INTERRUPTED.name() + (isEmpty(operations) ? "" : "," + operations);
+		}
+
+		JSONObject result = new JSONObject();
+		JSONArray results = new JSONArray();
+		boolean success = true;
+		String error = null;
+		boolean refused = false;
+
+		// A typo must never end up in a full reboot, so anything unknown is refused before running anything
+		if ((reboot != null) && !REBOOT_SOFT.equals(reboot) && !REBOOT_FULL.equals(reboot)) {
+			success = false;
+			refused = true;
+			error = "Unknown reboot " + reboot + ", only " + REBOOT_SOFT + " and " + REBOOT_FULL + " are supported.";
+			reboot = null;
+			operations = null;
+			installApps = null;
+			backup = false;
+			restoreFrom = null;
+		}
+
+		// Applies to everything copied or deleted by this request, the operations are planned and run right here
+		IoPolicy previousIoPolicy = SystemAppUtilities.getIoPolicy();
+		SystemAppUtilities.setIoPolicy(ioPolicy);
+
+		try {
+			result.put("id", id);
+			result.put("package", getPackageName());
+			result.put("device", android.os.Build.SERIAL);
+			result.put("started_at", startedAt);
+			result.put("dry_run", dryRun);
+			result.put("low_io_priority", ioPolicy.lowPriority);
+			result.put("max_bytes_per_s", ioPolicy.maxBytesPerSecond);
+
+			// Back up first, so destructive operations can be undone
+			if (backup) {
+				File dir = getResultDir();
+				File backupFile = new File(dir, getFileName(id) + ".tar.gz");
+
+				if (getExternalFilesDir(null) == null) {
+					// getResultDir() falls back to the data dir, the backup would be part of the data it backs up and grow while being read
+					success = false;
+					error = "No external storage available for the backup.";
+				} else {
+					try {
+						OutputStream out = new BufferedOutputStream(new FileOutputStream(backupFile));
+
+						try {
+							result.put("backup", toJson(SystemAppUtilities.backupAppData(this, out), backupFile));
+						} finally {
+							out.close();
+						}
+					} catch (IOException e) {
+						success = false;
+						error = "Unable to write the backup to " + backupFile + ".";
+					} catch (SystemAppUtilitiesException e) {
+						success = false;
+						error = e.getMessage();
+					}
+				}
+			}
+
+			if (refused) {
+				// Nothing is run at all
+			} else if (isEmpty(operations) && isEmpty(installApps) && !backup && isEmpty(restoreFrom)) {
+				success = false;
+				error = "No operations given.";
+			} else if (!isEmpty(operations) && (success || continueOnError)) {
+				for (String name : operations.split(",")) {
+					Operation operation;
+
+					try {
+						operation = Operation.valueOf(name.trim());
+					} catch (IllegalArgumentException e) {
+						success = false;
+						error = "Unknown operation " + name.trim() + ".";
+						break;
+					}
+
+					boolean option = (operation == Operation.UNINSTALL_SYSTEM_APP) ? keepUserApp : overwrite;
+
+					if (dryRun) {
+						JSONObject entry = new JSONObject();
+						entry.put("operation", operation.name());
+
+						try {
+							entry.put("plan", toJson(SystemAppUtilities.planOperation(this, operation, option)));
+							entry.put("success", true);
+							entry.put("error", JSONObject.NULL);
+						} catch (SystemAppUtilitiesException e) {
+							success = false;
+							entry.put("success", false);
+							entry.put("error", e.getMessage());
+						}
+
+						results.put(entry);
+
+						if (!success && !continueOnError) {
+							break;
+						}
+
+						continue;
+					}
+
+					OperationResult operationResult = SystemAppUtilities.runOperation(this, operation, option);
+
+					JSONObject entry = new JSONObject();
+					entry.put("operation", operation.name());
+					entry.put("success", operationResult.isSuccessful());
+					entry.put("started_at", operationResult.startedAt);
+					entry.put("duration_ms", operationResult.duration);
+					entry.put("error", (operationResult.error != null) ? operationResult.error : JSONObject.NULL);
+					entry.put("copied", (operationResult.transfer != null) ? toJson(operationResult.transfer) : JSONObject.NULL);
+					results.put(entry);
+
+					if (!operationResult.isSuccessful()) {
+						success = false;
+
+						if (!continueOnError) {
+							break;
+						}
+					}
+				}
+			}
+
+			result.put("operations", results);
+
+			if (!isEmpty(installApps) && (success || continueOnError)) {
+				JSONArray batch = new JSONArray();
+				List<String> apps = new ArrayList<String>();
+
+				for (String app : installApps.split(",")) {
+					if (!app.trim().isEmpty()) {
+						apps.add(app.trim());
+					}
+				}
+
+				try {
+					for (BatchResult batchResult : SystemAppUtilities.installAsSystemApps(this, apps, overwrite)) {
+						JSONObject entry = new JSONObject();
+						entry.put("app", batchResult.app);
+						entry.put("package", (batchResult.packageName != null) ? batchResult.packageName : JSONObject.NULL);
+						entry.put("system_app_file", (batchResult.systemAppFile != null) ? batchResult.systemAppFile : JSONObject.NULL);
+						entry.put("sha256", (batchResult.digest != null) ? batchResult.digest : JSONObject.NULL);
+						entry.put("success", batchResult.isSuccessful());
+						entry.put("duration_ms", batchResult.duration);
+						entry.put("copied", (batchResult.transfer != null) ? toJson(batchResult.transfer) : JSONObject.NULL);
+						entry.put("error", (batchResult.error != null) ? batchResult.error : JSONObject.NULL);
+						batch.put(entry);
+
+						success &= batchResult.isSuccessful();
+					}
+				} catch (SystemAppUtilitiesException e) {
+					success = false;
+					error = e.getMessage();
+				}
+
+				result.put("install_apps", batch);
+			}
+
+			if (!isEmpty(restoreFrom) && (success || continueOnError)) {
+				File backupFile = new File(restoreFrom);
+
+				try {
+					InputStream in = new BufferedInputStream(new FileInputStream(backupFile));
+
+					try {
+						result.put("restore", toJson(SystemAppUtilities.restoreAppData(this, in), backupFile));
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					success = false;
+					error = "Unable to read the backup from " + backupFile + ".";
+				} catch (SystemAppUtilitiesException e) {
+					success = false;
+					error = e.getMessage();
+				}
+			}
+
+			result.put("success", success);
+			result.put("error", (error != null) ? error : JSONObject.NULL);
+			result.put("duration_ms", SystemClock.elapsedRealtime() - start);
+			result.put("reboot", (success && (reboot != null)) ? reboot : JSONObject.NULL);
+		} catch (JSONException e) {
+			Log.e(TAG, "Unable to create the result", e);
+			return;
+		} finally {
+			SystemAppUtilities.setIoPolicy(previousIoPolicy);
+		}
+
+		Log.i(TAG, result.toString());
+		writeResult(id, result);
+
+		// Reboot last, the result has to be written before
+		if (success && (reboot != null)) {
+			if (!SystemAppUtilities.reboot(REBOOT_SOFT.equals(reboot))) {
+				Log.e(TAG, "Reboot failed");
+			}
+		}
+	}
+
+	private static boolean isEmpty(String extra) {
+		return (extra == null) || extra.trim().isEmpty();
+	}
+
+	private static String getFileName(String id) {
+		return id.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	private static JSONObject toJson(TransferStats stats, File file) throws JSONException {
+		JSONObject entry = new JSONObject();
+		entry.put("file", file.getPath());
+		entry.put("raw_bytes", stats.rawBytes);
+		entry.put("compressed_bytes", stats.compressedBytes);
+		entry.put("duration_ms", stats.duration);
+		entry.put("throughput_bytes_per_s", stats.getThroughput());
+		return entry;
+	}
+
+	private static JSONObject toJson(TransferStats stats) throws JSONException {
+		JSONObject entry = new JSONObject();
+		entry.put("bytes", stats.rawBytes);
+		entry.put("duration_ms", stats.duration);
+		entry.put("throughput_bytes_per_s", stats.getThroughput());
+		return entry;
+	}
+
+	private static JSONObject toJson(Plan plan) throws JSONException {
+		JSONArray steps = new JSONArray();
+
+		for (Step step : plan.getSteps()) {
+			JSONObject entry = new JSONObject();
+			entry.put("description", step.description);
+			entry.put("command", (step.command != null) ? step.command : JSONObject.NULL);
+			entry.put("bytes_read", step.bytesRead);
+			entry.put("bytes_written", step.bytesWritten);
+			entry.put("bytes_deleted", step.bytesDeleted);
+			entry.put("round_trips", step.roundTrips);
+			steps.put(entry);
+		}
+
+		JSONArray probes = new JSONArray();
+
+		for (String probe : plan.getProbes()) {
+			probes.put(probe);
+		}
+
+		JSONObject entry = new JSONObject();
+		entry.put("probes", probes);
+		entry.put("bytes_read", plan.getBytesRead());
+		entry.put("bytes_written", plan.getBytesWritten());
+		entry.put("bytes_deleted", plan.getBytesDeleted());
+		entry.put("round_trips", plan.getRoundTrips());
+		entry.put("steps", steps);
+		return entry;
+	}
+
+	/**
+	 * Get the directory results and backups are written to
+	 * It's on the external storage if available, so it can be pulled without root, and it survives clearing the app data
+	 *
+	 * @return the directory, it may not exist if it couldn't be created
+	 */
+	private File getResultDir() {
+		File dir = getExternalFilesDir(null);
+
+		if (dir == null) {
+			dir = getFilesDir(); // no external storage available
+		}
+
+		dir = new File(dir, "provisioning");
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.e(TAG, "Unable to create the directory " + dir);
+		}
+
+		return dir;
+	}
+
+	/**
+	 * Writes the result to a file, first to a temp file and then renamed, so nobody reads a partial result
+	 *
+	 * @param id request id, used as file name
+	 * @param result the result
+	 */
+	private void writeResult(String id, JSONObject result) {
+		File dir = getResultDir();
+		String name = getFileName(id);
+		File tempFile = new File(dir, name + ".json.tmp");
+		File file = new File(dir, name + ".json");
+		Writer writer = null;
+
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+			writer.write(result.toString(2));
+			writer.close();
+			writer = null;
+
+			if (!tempFile.renameTo(file)) {
+				Log.e(TAG, "Unable to rename " + tempFile + " to " + file);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to write the result to " + file, e);
+		} catch (JSONException e) {
+			Log.e(TAG, "Unable to write the result to " + file, e);
+		} finally {
+			if (writer != null) {
+				try { writer.close(); } catch (IOException ignored) { }
+			}
+		}
+	}
+}
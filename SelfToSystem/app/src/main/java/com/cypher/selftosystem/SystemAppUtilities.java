@@ -8,14 +8,45 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.os.AsyncTask;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import com.stericson.RootShell.RootShell;
 import com.stericson.RootShell.exceptions.RootDeniedException;
 import com.stericson.RootShell.execution.Command;
+import com.stericson.RootShell.execution.Shell;
 import com.stericson.RootTools.RootTools;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipFile;
 
 /**
  * SystemAppUtilities, created by Cypher
@@ -34,10 +65,67 @@ public class SystemAppUtilities {
 
 	private static final String systemAppFile;
 
+	private static final String previousSystemAppFile; // the previous generation of the system app, see rollbackSystemApp(...)
+
+	private static final String MAGISK_MODULES_PATH = "/data/adb/modules/";
+
+	private static final String systemlessModulePath; // the Magisk module for the systemless mode, see planInstallSystemless(...)
+
+	private static final int DELTA_BLOCK_SIZE = 64 * 1024;
+
+	private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+	private static final int AID_USER_OFFSET = 100000; // uid range per Android user, uid = user id * AID_USER_OFFSET + app id
+	private static final int AID_APP_START = 10000; // first app id
+	private static final int AID_CACHE_GID_START = 20000; // first cache group, app id AID_APP_START has this one, see getCacheGid(...)
+
+	private static final long MIN_COPY_BYTES_PER_SECOND = 512 * 1024; // slow eMMC at low I/O priority, for copy timeouts
+
+	private static final String SYSTEM_APP_OWNER = "root:root";
+	private static final String SYSTEM_APP_CONTEXT = "u:object_r:system_file:s0";
+	private static final String USER_APP_OWNER = "system:system";
+	private static final String USER_APP_CONTEXT = "u:object_r:apk_data_file:s0";
+
+	private static final String JOURNAL_FILE = "system_app_journal";
+	private static final String JOURNAL_PHASE = "phase";
+	private static final String JOURNAL_TARGET = "target";
+	private static final String JOURNAL_TEMP = "temp";
+	private static final String JOURNAL_DIGEST = "digest";
+	private static final String JOURNAL_STAGING = "staging"; // the temp file is being written, it may be incomplete
+	private static final String JOURNAL_STAGED = "staged"; // the temp file is complete and verified, only the rename is missing
+
+	private static final StatusWatcher statusWatcher = new StatusWatcher();
+
+	private static final CircuitBreaker rootBreaker = new CircuitBreaker();
+
+	private static volatile ShellPolicy shellPolicy = ShellPolicy.DEFAULT;
+
+	private static volatile IoPolicy ioPolicy = IoPolicy.DEFAULT;
+
+	private static final String IO_PRIORITY_PREFIX = "ionice -c 2 -n 7 nice -n 19 "; // preferred, see getIoPriorityPrefix(...)
+	private static volatile String ioPriorityPrefix = null; // found out on first use, see getIoPriorityPrefix(...)
+
 	static {
+		systemAppFile = getSystemAppFile(BuildConfig.APPLICATION_ID);
+		previousSystemAppFile = systemAppFile + ".prev"; // no .apk extension, so the package manager ignores it
+		systemlessModulePath = MAGISK_MODULES_PATH + BuildConfig.APPLICATION_ID;
+
+		// Commands are waited for on the calling thread, so their output must not be posted to its Looper, e.g. the one
+		// of an IntentService, it would only arrive after the wait, and RootTools' own commands wait the same way
+		// Switched off here, as the Command constructor taking a timeout doesn't take the handler flag
+		RootShell.handlerEnabled = false;
+	}
+
+	/**
+	 * Evaluates where the system app of a package belongs
+	 *
+	 * @param packageName package name of the app
+	 * @return full path of the system APK
+	 */
+	private static String getSystemAppFile(String packageName) {
 		String systemAppsPath = "/system/priv-app/";
 		String subfolder = "";
-		String apkName = BuildConfig.APPLICATION_ID + ".apk";
+		String apkName = packageName + ".apk";
 
 		// Android 4.3: API 18, some say this already had the priv-app folder, but at least Genymotion does not
 		// Android 4.4: API 19, first version that definitely had a priv-app folder
@@ -59,7 +147,7 @@ public class SystemAppUtilities {
 			//apkName = appName + ".apk";
 		}
 
-		systemAppFile = systemAppsPath + subfolder + apkName;
+		return systemAppsPath + subfolder + apkName;
 	}
 
 	/**
@@ -79,9 +167,53 @@ public class SystemAppUtilities {
 	 * @throws SystemAppUtilitiesException in case of an error, check message
 	 */
 	public static void gainRootAccess() throws SystemAppUtilitiesException {
+		if (!rootBreaker.allowRequest()) {
+			throw new SystemAppUtilitiesException("Root access has been denied repeatedly. Please grant this app root authority and try again in " + (rootBreaker.getRemainingCooldown() / 1000 + 1) + " seconds.");
+		}
+
 		if (!RootTools.isAccessGiven()) {
+			rootBreaker.onRootDenied();
 			throw new SystemAppUtilitiesException("Unable to obtain root access. Please make sure you grant this app root authority.");
 		}
+
+		rootBreaker.onSuccess();
+	}
+
+	/**
+	 * Set the retry and circuit breaker policy used for all root shell commands
+	 *
+	 * @param policy the new policy
+	 */
+	public static void setShellPolicy(final ShellPolicy policy) {
+		shellPolicy = policy;
+	}
+
+	/**
+	 * Get the retry and circuit breaker policy used for all root shell commands
+	 *
+	 * @return the current policy
+	 */
+	public static ShellPolicy getShellPolicy() {
+		return shellPolicy;
+	}
+
+	/**
+	 * Set the I/O policy used for copying and deleting app files, e.g. IoPolicy.BACKGROUND while the user is interacting
+	 * Operations use the policy set when they are planned
+	 *
+	 * @param policy the new policy
+	 */
+	public static void setIoPolicy(final IoPolicy policy) {
+		ioPolicy = policy;
+	}
+
+	/**
+	 * Get the I/O policy used for copying and deleting app files
+	 *
+	 * @return the current policy
+	 */
+	public static IoPolicy getIoPolicy() {
+		return ioPolicy;
 	}
 
 	/**
@@ -110,6 +242,11 @@ public class SystemAppUtilities {
 
 		PackageInfo info = context.getPackageManager().getPackageArchiveInfo(currentFile, 0);
 
+		if (info == null) {
+			// The APK path of a running app doesn't change until restart, so the file may already be gone
+			return systemApp ? "No system app available" : "No user app available";
+		}
+
 		return "Apk file: " + currentFile + "\nVersion code: " + info.versionCode + "\nVersion name: " + info.versionName;
 	}
 
@@ -152,6 +289,47 @@ public class SystemAppUtilities {
 		return (context.getApplicationInfo().flags & ApplicationInfo.FLAG_SYSTEM) != 0;
 	}
 
+	/**
+	 * Subscribe to status updates about root and the user and system app
+	 * The current status is delivered right away, afterwards only real changes are delivered, always on the main thread
+	 *
+	 * Changes are detected by watching the user app, the system app and the data dir, so nothing is polled
+	 * Paths the app can't read itself are watched by a root-side inotifyd, if available
+	 *
+	 * @param context app context
+	 * @param listener listener to be notified
+	 */
+	public static void subscribeStatus(final Context context, final StatusListener listener) {
+		statusWatcher.subscribe(context.getApplicationContext(), listener);
+	}
+
+	/**
+	 * Unsubscribe from status updates
+	 * Watching stops as soon as the last listener is gone
+	 *
+	 * @param listener listener to be removed
+	 */
+	public static void unsubscribeStatus(final StatusListener listener) {
+		statusWatcher.unsubscribe(listener);
+	}
+
+	/**
+	 * Forces the status to be probed again, e.g. after changes the watchers can't see
+	 * Listeners are only notified if the status actually changed
+	 */
+	public static void refreshStatus() {
+		statusWatcher.refresh(0);
+	}
+
+	/**
+	 * Get the last known status, without probing anything
+	 *
+	 * @return last known status, null if nobody is subscribed or the first probe isn't finished yet
+	 */
+	public static Status getStatus() {
+		return statusWatcher.getStatus();
+	}
+
 	/**
 	 * Starts an AsyncTask to copy the user app, if existing, to the system partition
 	 *
@@ -160,36 +338,27 @@ public class SystemAppUtilities {
 	 * @throws SystemAppUtilitiesException in case of an error, check message
 	 */
 	public static void installAsSystemApp(final Context context, final boolean overwriteIfExists) throws SystemAppUtilitiesException {
-		AsyncTask<Void, Void, Boolean> task = new AsyncTask<Void, Void, Boolean>() {
-			SystemAppUtilitiesException error = null;
-			ProgressDialog progress = null;
-
-			@Override
-			protected void onPreExecute() {
-				super.onPreExecute();
-				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(R.string.progress_copy_to_system));
-			}
-
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					copyAppToSystem(context, overwriteIfExists);
-				} catch (SystemAppUtilitiesException e) {
-					error = e;
-					return false;
-				}
+		installAsSystemApp(context, overwriteIfExists, InstallMode.COPY);
+	}
 
-				return true;
-			}
+	/**
+	 * Starts an AsyncTask to copy the user app, if existing, to the system partition
+	 *
+	 * @param context app context
+	 * @param overwriteIfExists decides if an existing system app should be overwritten or not, DELTA always overwrites
+	 * @param mode how the system app is written
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	public static void installAsSystemApp(final Context context, final boolean overwriteIfExists, final InstallMode mode) throws SystemAppUtilitiesException {
+		Operation operation = Operation.INSTALL_SYSTEM_APP;
 
-			@Override
-			protected void onPostExecute(Boolean result) {
-				progress.dismiss();
-				checkResult(result, context, error);
-			}
-		};
+		if (mode == InstallMode.DELTA) {
+			operation = Operation.UPDATE_SYSTEM_APP;
+		} else if (mode == InstallMode.SYSTEMLESS) {
+			operation = Operation.INSTALL_SYSTEMLESS;
+		}
 
-		task.execute((Void) null);
+		startOperationTask(context, R.string.progress_copy_to_system, operation, overwriteIfExists);
 	}
 
 	/**
@@ -200,37 +369,7 @@ public class SystemAppUtilities {
 	 * @throws SystemAppUtilitiesException in case of an error, check message
 	 */
 	public static void uninstallSystemApp(final Context context, final boolean keepUserApp) throws SystemAppUtilitiesException {
-		AsyncTask<Void, Void, Boolean> task = new AsyncTask<Void, Void, Boolean>() {
-			SystemAppUtilitiesException error = null;
-			ProgressDialog progress = null;
-
-			@Override
-			protected void onPreExecute() {
-				super.onPreExecute();
-				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(R.string.progress_uninstalling));
-			}
-
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					deleteSystemApp(context, keepUserApp);
-				} catch (SystemAppUtilitiesException e) {
-					error = e;
-					return false;
-				}
-
-				return true;
-			}
-
-			@Override
-			protected void onPostExecute(Boolean result) {
-				progress.dismiss();
-
-				checkResult(result, context, error);
-			}
-		};
-
-		task.execute((Void) null);
+		startOperationTask(context, R.string.progress_uninstalling, Operation.UNINSTALL_SYSTEM_APP, keepUserApp);
 	}
 
 	/**
@@ -243,75 +382,99 @@ public class SystemAppUtilities {
 	 * @throws SystemAppUtilitiesException in case of an error, check message
 	 */
 	public static void uninstallUserApp(final Context context) throws SystemAppUtilitiesException {
-		AsyncTask<Void, Void, Boolean> task = new AsyncTask<Void, Void, Boolean>() {
-			SystemAppUtilitiesException error = null;
-			ProgressDialog progress = null;
+		startOperationTask(context, R.string.progress_uninstalling, Operation.UNINSTALL_USER_APP, false);
+	}
 
-			@Override
-			protected void onPreExecute() {
-				super.onPreExecute();
-				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(R.string.progress_uninstalling));
-			}
+	/**
+	 * Starts an AsyncTask to delete the app data, like doing so in the Android settings
+	 *
+	 * CAUTION! This could lead to problems on various Android versions!
+	 *
+	 * @param context app context
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	public static void clearAppData(final Context context) throws SystemAppUtilitiesException {
+		startOperationTask(context, R.string.progress_deleting, Operation.CLEAR_APP_DATA, false);
+	}
 
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					deleteUserApp(context);
-				} catch (SystemAppUtilitiesException e) {
-					error = e;
-					return false;
-				}
+	/**
+	 * Starts an AsyncTask to check for an operation that has been interrupted, e.g. by a crash or reboot, and to recover it
+	 * Depending on how far the operation got, it is either completed or rolled back
+	 *
+	 * @param context app context
+	 */
+	public static void recoverInterruptedOperation(final Context context) {
+		startOperationTask(context, R.string.progress_recovering, Operation.RECOVER_INTERRUPTED, false);
+	}
 
-				return true;
-			}
+	/**
+	 * Starts an AsyncTask to restore the previous generation of the system app
+	 * Whenever the system app is replaced, the previous one is kept on the system partition, so this is just a rename
+	 * Afterwards, there's no previous generation anymore until the system app gets replaced again
+	 *
+	 * @param context app context
+	 */
+	public static void rollbackSystemApp(final Context context) {
+		startOperationTask(context, R.string.progress_rollback, Operation.ROLLBACK_SYSTEM_APP, false);
+	}
 
-			@Override
-			protected void onPostExecute(Boolean result) {
-				progress.dismiss();
+	/**
+	 * Get APK infos of the previous generation of the system app in form of a string, see rollbackSystemApp(...)
+	 *
+	 * @param context app context
+	 * @return APK path, version code and version name, or not-available-message
+	 */
+	public static String getPreviousSystemAppInfos(final Context context) {
+		// The APK is world-readable, so its metadata can be read from the file itself
+		PackageInfo info = context.getPackageManager().getPackageArchiveInfo(previousSystemAppFile, 0);
 
-				checkResult(result, context, error);
-			}
-		};
+		if (info == null) {
+			return "No previous system app available";
+		}
 
-		task.execute((Void) null);
+		return "Apk file: " + previousSystemAppFile + "\nVersion code: " + info.versionCode + "\nVersion name: " + info.versionName;
 	}
 
 	/**
-	 * Starts an AsyncTask to delete the app data, like doing so in the Android settings
+	 * Check if there is an interrupted operation, see recoverInterruptedOperation(...)
+	 * This only checks for the journal file and doesn't need root
 	 *
-	 * CAUTION! This could lead to problems on various Android versions!
+	 * @param context app context
+	 * @return true if an operation has been interrupted
+	 */
+	public static boolean hasInterruptedOperation(final Context context) {
+		return getJournalFile(context).exists();
+	}
+
+	/**
+	 * Starts an AsyncTask showing a progress dialog to run an operation
+	 * Afterwards, the result is shown by checkResult(...)
 	 *
 	 * @param context app context
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param progressMessage message shown while the operation is running
+	 * @param operation the operation to run
+	 * @param option see runOperation(...)
 	 */
-	public static void clearAppData(final Context context) throws SystemAppUtilitiesException {
-		AsyncTask<Void, Void, Boolean> task = new AsyncTask<Void, Void, Boolean>() {
-			SystemAppUtilitiesException error = null;
+	private static void startOperationTask(final Context context, final int progressMessage, final Operation operation, final boolean option) {
+		AsyncTask<Void, Void, OperationResult> task = new AsyncTask<Void, Void, OperationResult>() {
 			ProgressDialog progress = null;
 
 			@Override
 			protected void onPreExecute() {
 				super.onPreExecute();
-				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(R.string.progress_deleting));
+				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(progressMessage));
 			}
 
 			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					deleteAppData(context);
-				} catch (SystemAppUtilitiesException e) {
-					error = e;
-					return false;
-				}
-
-				return true;
+			protected OperationResult doInBackground(Void... params) {
+				return runOperation(context, operation, option);
 			}
 
 			@Override
-			protected void onPostExecute(Boolean result) {
+			protected void onPostExecute(OperationResult result) {
 				progress.dismiss();
 
-				checkResult(result, context, error);
+				checkResult(result, context);
 			}
 		};
 
@@ -319,358 +482,3041 @@ public class SystemAppUtilities {
 	}
 
 	/**
-	 * Returns the APK file name, by request including its full path
+	 * Runs an operation synchronously and without any UI, e.g. for unattended provisioning
+	 * This blocks until the operation is finished, so don't call it on the main thread
 	 *
 	 * @param context app context
-	 * @param includeFullPath decides if the full path should be included or not
-	 * @return APK file name, including its full path or not
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param operation the operation to run
+	 * @param option overwriteIfExists for INSTALL_SYSTEM_APP and INSTALL_SYSTEMLESS, keepUserApp for UNINSTALL_SYSTEM_APP, ignored otherwise
+	 * @return the result including its timing, errors are reported there instead of being thrown
 	 */
-	private static String getApkName(final Context context, boolean includeFullPath) throws SystemAppUtilitiesException {
-		String fullPath = context.getApplicationInfo().sourceDir;
-
-		if (fullPath.isEmpty() || (fullPath.lastIndexOf('/') == -1)) {
-			throw new SystemAppUtilitiesException("Unable to find the path to the APK. Is it already uninstalled? Did you remember to reboot after uninstalling? Current location appears to be " + fullPath + ".");
-		}
-
-		if (!includeFullPath) {
-			fullPath = fullPath.substring(fullPath.lastIndexOf('/') + 1);
-		}
-
-		return fullPath;
+	public static OperationResult runOperation(final Context context, final Operation operation, final boolean option) {
+		return runPlan(context, operation, option, null);
 	}
 
 	/**
-	 * Copies the user app, if existing, to the system partition using RootTools
+	 * Runs a plan created by planOperation(...) synchronously and without any UI
+	 * Nothing is planned again, so better don't wait long in between, the steps rely on what has been found while planning
+	 * This blocks until the plan is finished, so don't call it on the main thread
 	 *
-	 * @param context app context
-	 * @param overwriteIfExists decides if an existing system app should be overwritten or not
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param plan the plan to run
+	 * @return the result including its timing, errors are reported there instead of being thrown
 	 */
-	private static void copyAppToSystem(final Context context, final boolean overwriteIfExists) throws SystemAppUtilitiesException {
-		// Verify we do have root
-		gainRootAccess();
+	public static OperationResult runPlan(final Plan plan) {
+		return runPlan(null, plan.operation, false, plan);
+	}
 
-		// Copy the file to system partition
-		String currentFile = getApkName(context, true);
+	/**
+	 * Runs a plan, planning the operation first if no plan is given, see runOperation(...) and runPlan(Plan)
+	 *
+	 * @param context app context, only needed if no plan is given
+	 * @param operation the operation
+	 * @param option see runOperation(...), only needed if no plan is given
+	 * @param plan the plan to run, null to plan the operation first
+	 * @return the result including its timing, errors are reported there instead of being thrown
+	 */
+	private static OperationResult runPlan(final Context context, final Operation operation, final boolean option, Plan plan) {
+		long startedAt = System.currentTimeMillis();
+		long start = SystemClock.elapsedRealtime();
+		String error = null;
 
-		if (currentFile.startsWith("/system/")) {
-			throw new SystemAppUtilitiesException("Only a system app is available but no user app.");
-		}
+		try {
+			if (plan == null) {
+				plan = planOperation(context, operation, option);
+			}
 
-		if (RootTools.exists(systemAppFile, false)) {
-			if (overwriteIfExists) {
-				boolean deletedApp = RootTools.deleteFileOrDirectory(systemAppFile, true);
+			Log.d(TAG, "Running " + plan);
 
-				if (!deletedApp) {
-					throw new SystemAppUtilitiesException("Unable to delete the file " + systemAppFile + ".");
-				}
-			} else {
-				// RootTools.copyFile(...) below overwrites existing files, so throw an exception if the file exists
-				throw new SystemAppUtilitiesException("The file " + systemAppFile + " already exists.");
-			}
+			plan.execute();
+		} catch (SystemAppUtilitiesException e) {
+			error = e.getMessage();
 		}
 
-		Log.d(TAG, "Using RootTools to copy app from " + currentFile + " to " + systemAppFile);
+		long duration = SystemClock.elapsedRealtime() - start;
 
-		// RootTools.copyFile(...) overwrites existing files, so we check if the file exists above
-		boolean copiedApp = RootTools.copyFile(currentFile, systemAppFile, true, true);
+		TransferStats transfer = (plan != null) ? plan.getTransfer() : null;
 
-		if (!copiedApp) {
-			throw new SystemAppUtilitiesException("Unable to copy the file " + currentFile + " to " + systemAppFile + ".");
-		}
+		Log.d(TAG, operation + " finished in " + duration + " ms" + ((transfer != null) ? ", copied " + transfer : "") + ((error != null) ? ", error: " + error : ""));
+
+		return new OperationResult(operation, startedAt, duration, error, transfer);
 	}
 
 	/**
-	 * Copies the system app, if existing, to the data partition using RootTools
-	 *
-	 * No overwriteIfExists parameter is used here, existing user apps are deleted regardless
-	 * First, it is too annoying to discover an existing app
-	 * Second, this shouldn't be used anyway if there is an existing user app
-	 *
-	 * The purpose of this method is to restore a user app, if it got lost by a factory reset.
+	 * Plans an operation without running it, e.g. to show what is going to happen and what it costs beforehand
+	 * Planning only looks at the current state, like which APKs exist and how large they are, nothing is changed
+	 * Root is asked for by the first step of the plan, not while planning, and nothing is run in the root shell,
+	 * except for looking at paths the app can't see itself, like /data/adb, see Plan.getProbes()
+	 * The plan is exactly what runOperation(...) runs, it can also be run by runPlan(Plan)
+	 * This may take a while, so don't call it on the main thread
 	 *
 	 * @param context app context
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param operation the operation to plan
+	 * @param option see runOperation(...)
+	 * @return the plan, see Plan
+	 * @throws SystemAppUtilitiesException if the operation isn't possible, check message
 	 */
-	private static void copyAppToData(final Context context) throws SystemAppUtilitiesException {
-		String currentFile = getApkName(context, true);
-
-		// It shouldn't be necessary to test this, because we tested it before calling this method
-		// Let's do it anyway, if this method is going to be used somewhere else in the future
-		// We don't use isSystemApp(...) here, because, although this should not happen, the app or device probably haven't been restarted
-		if (!RootTools.exists(systemAppFile)) {
-			throw new SystemAppUtilitiesException("System app doesn't exist, nothing to do.");
+	public static Plan planOperation(final Context context, final Operation operation, final boolean option) throws SystemAppUtilitiesException {
+		switch (operation) {
+			case INSTALL_SYSTEM_APP:
+				return planCopyAppToSystem(context, option, InstallMode.COPY);
+			case UPDATE_SYSTEM_APP:
+				return planCopyAppToSystem(context, true, InstallMode.DELTA);
+			case INSTALL_SYSTEMLESS:
+				return planCopyAppToSystem(context, option, InstallMode.SYSTEMLESS);
+			case UNINSTALL_SYSTEM_APP:
+				return planDeleteSystemApp(context, option);
+			case UNINSTALL_USER_APP:
+				return planDeleteUserApp(context);
+			case CLEAR_APP_DATA:
+				return planDeleteAppData(context);
+			case RECOVER_INTERRUPTED:
+				return planRecoverSystemApp(context);
+			case ROLLBACK_SYSTEM_APP:
+				return planRestorePreviousSystemApp();
+			default:
+				throw new SystemAppUtilitiesException("Unknown operation " + operation + ".");
 		}
+	}
 
+	/**
+	 * Installs several apps as system apps at once, sharing one root shell and one remount of the system partition
+	 * Digests of the APKs are computed in parallel, before copying and again for verification afterwards
+	 * Each APK is copied to a temp file first and only renamed to its system app after the verification, so an
+	 * existing system app is never left broken, it's either replaced completely or not at all
+	 * This blocks until all apps are done, so don't call it on the main thread
+	 *
+	 * @param context app context
+	 * @param apps package names of installed user apps or full paths of APK files
+	 * @param overwriteIfExists decides if existing system apps should be overwritten or not
+	 * @return one result per app, in the given order
+	 * @throws SystemAppUtilitiesException if root or the remount isn't available, errors of single apps are reported in the results
+	 */
+	public static List<BatchResult> installAsSystemApps(final Context context, final List<String> apps, final boolean overwriteIfExists) throws SystemAppUtilitiesException {
 		// Verify we do have root
 		gainRootAccess();
 
-		String targetPath;
-		boolean copiedApp = true;
+		List<BatchResult> results = new ArrayList<BatchResult>();
 
-		if (android.os.Build.VERSION.SDK_INT < 20) { // Android 4.4: API 19, Android 5.0: API 21 (first with subfolders for apps)
-			// Although this should never happen, delete possibly existing user app files or folders using a wildcard
-			boolean deletedUserApp = RootTools.deleteFileOrDirectory("/data/app/" + context.getPackageName() + "*", true);
-			// It doesn't really matter if this worked, so don't check deletedUserApp
+		for (String app : apps) {
+			results.add(resolveBatchApp(context, app));
+		}
 
-			// Set the target file name
-			targetPath = "/data/app/" + context.getPackageName() + "-1.apk";
-		} else {
-			String userAppDir;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(results.size(), Runtime.getRuntime().availableProcessors())));
 
-			// Although this should never happen, delete possibly existing user app files or folders using a wildcard
-			boolean deletedUserApp = RootTools.deleteFileOrDirectory("/data/app/" + context.getPackageName() + "*", true);
-			// It doesn't really matter if this worked, so don't check deletedUserApp
+		try {
+			List<Future<String>> digests = computeDigests(executor, results, false);
 
-			// Set the target file name
-			targetPath = "/data/app/" + context.getPackageName() + "-1/base.apk";
-			// Set the target folder name
-			userAppDir = "/data/app/" + context.getPackageName() + "-1";
+			for (int i = 0; i < results.size(); i++) {
+				BatchResult result = results.get(i);
 
-			// Create the target folder
-			copiedApp &= executeCommand("mkdir " + userAppDir);
-			copiedApp &= executeCommand("chmod 755 " + userAppDir);
-			copiedApp &= executeCommand("chown system:system " + userAppDir);
-		}
+				if (result.error == null) {
+					result.digest = getDigestResult(digests.get(i), result);
+				}
+			}
 
-		Log.d(TAG, "Using RootTools to copy app from " + currentFile + " to " + targetPath);
+			String systemAppsPath = systemAppFile.substring(0, systemAppFile.lastIndexOf('/'));
 
-		copiedApp &= RootTools.copyFile(currentFile, targetPath, false, true);
-		copiedApp &= executeCommand("chown system:system " + targetPath);
+			if (!remount(systemAppsPath, "rw")) {
+				throw new SystemAppUtilitiesException("Unable to remount " + systemAppsPath + " read-write.");
+			}
 
-		if (!copiedApp) {
-			// Revert eventually successful parts by deleting the folder
-			boolean deletedUserAppDir = RootTools.deleteFileOrDirectory(targetPath.substring(0, targetPath.lastIndexOf('/')), true);
+			try {
+				for (BatchResult result : results) {
+					if (result.error == null) {
+						copyBatchApp(result, overwriteIfExists);
+					}
+				}
+
+				List<Future<String>> verifications = computeDigests(executor, results, true);
+
+				for (int i = 0; i < results.size(); i++) {
+					BatchResult result = results.get(i);
+
+					if (result.error == null) {
+						String digest = getDigestResult(verifications.get(i), result);
 
-			throw new SystemAppUtilitiesException("Unable to copy the file " + currentFile + " to " + targetPath + ".");
+						if ((digest != null) && !digest.equals(result.digest)) {
+							result.error = "Digest of " + getBatchTempFile(result) + " doesn't match " + result.apkFile + ".";
+						}
+					}
+
+					activateBatchApp(result);
+				}
+			} finally {
+				if (!remount(systemAppsPath, "ro")) {
+					Log.d(TAG, "Unable to remount " + systemAppsPath + " read-only");
+				}
+			}
+		} finally {
+			executor.shutdownNow();
 		}
+
+		return results;
 	}
 
 	/**
-	 * Deletes the system app, if existing, from the system partition using RootTools
+	 * Resolves the APK and the system app path of an app of a batch
 	 *
 	 * @param context app context
-	 * @param keepUserApp decides if an existing user app should be kept or deleted
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param app package name of an installed user app or full path of an APK file
+	 * @return the result to be filled in, with an error if the app couldn't be resolved
 	 */
-	private static void deleteSystemApp(final Context context, final boolean keepUserApp) throws SystemAppUtilitiesException {
-		// We don't use isSystemApp(...) here, because, although this should not happen, the app or device probably haven't been restarted
-		if (!RootTools.exists(systemAppFile)) {
-			throw new SystemAppUtilitiesException("System app doesn't exist, nothing to do.");
-		}
+	private static BatchResult resolveBatchApp(final Context context, String app) {
+		BatchResult result = new BatchResult(app);
 
-		// Verify we do have root
-		gainRootAccess();
+		if (app.startsWith("/")) {
+			PackageInfo info = context.getPackageManager().getPackageArchiveInfo(app, 0);
 
-		// First, evaluate if the user app is still there
-		String currentFile = getApkName(context, true);
+			if (info == null) {
+				result.error = "Unable to parse the APK " + app + ".";
+				return result;
+			}
 
-		if (currentFile.startsWith("/system/")) {
-			// Only the system app is left, most likely because of a factory reset
-			if (keepUserApp) {
-				copyAppToData(context);
+			result.packageName = info.packageName;
+			result.apkFile = app;
+		} else {
+			try {
+				result.packageName = app;
+				result.apkFile = context.getPackageManager().getApplicationInfo(app, 0).sourceDir;
+			} catch (PackageManager.NameNotFoundException e) {
+				result.error = "Package " + app + " isn't installed.";
+				return result;
 			}
+
+			if (!result.apkFile.startsWith("/data/app/")) {
+				result.error = "Only a system app is available but no user app for " + app + ".";
+				return result;
+			}
+		}
+
+		result.systemAppFile = getSystemAppFile(result.packageName);
+
+		return result;
+	}
+
+	/**
+	 * Copies an app of a batch to a temp file next to its system app, which has to be mounted read-write already
+	 * The temp file gets the attributes of a system app, so renaming it is all that's left, see activateBatchApp(...)
+	 *
+	 * @param result the resolved app, the error is set if copying fails
+	 * @param overwriteIfExists decides if an existing system app should be overwritten or not
+	 */
+	private static void copyBatchApp(BatchResult result, boolean overwriteIfExists) {
+		long start = SystemClock.elapsedRealtime();
+
+		if (!overwriteIfExists && rootExists(result.systemAppFile, false)) {
+			result.error = "The file " + result.systemAppFile + " already exists.";
+			return;
 		}
 
-		Log.d(TAG, "Using RootTools to delete app from " + systemAppFile);
+		String tempFile = getBatchTempFile(result);
 
-		// Delete app on system partition
-		boolean deletedSystemApp = RootTools.deleteFileOrDirectory(systemAppFile, true);
+		Log.d(TAG, "Copying app from " + result.apkFile + " to " + tempFile);
 
-		if (!deletedSystemApp) {
-			throw new SystemAppUtilitiesException("Unable to delete the file " + systemAppFile + ".");
+		try {
+			result.transfer = copyFile(result.apkFile, tempFile, null, ioPolicy);
+			applyAttributes(tempFile, SYSTEM_APP_OWNER, SYSTEM_APP_CONTEXT);
+		} catch (SystemAppUtilitiesException e) {
+			result.error = e.getMessage();
 		}
+
+		result.duration = SystemClock.elapsedRealtime() - start;
 	}
 
 	/**
-	 * Deletes the user app, if existing, from the data partition using RootTools
-	 * This doesn't care about if there is a system app, so it maybe lead to a complete uninstall
+	 * Renames the verified temp file of an app of a batch to its system app, or deletes it if anything failed
+	 * The system partition has to be mounted read-write already
 	 *
-	 * CAUTION! This could lead to problems on various Android versions!
+	 * @param result the app, the error is set if renaming fails
+	 */
+	private static void activateBatchApp(BatchResult result) {
+		if (result.systemAppFile == null) {
+			return; // not resolved, nothing has been copied
+		}
+
+		String tempFile = getBatchTempFile(result);
+
+		if (result.error != null) {
+			executeCommand("rm -f " + quote(tempFile));
+		} else if (!executeCommand("mv -f " + quote(tempFile) + " " + quote(result.systemAppFile))) {
+			executeCommand("rm -f " + quote(tempFile));
+			result.error = "Unable to rename the file " + tempFile + " to " + result.systemAppFile + ".";
+		}
+	}
+
+	private static String getBatchTempFile(BatchResult result) {
+		return result.systemAppFile + ".tmp";
+	}
+
+	/**
+	 * Starts computing the digests of all apps of a batch without errors in parallel
 	 *
-	 * @param context app context
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param executor executor to compute the digests on
+	 * @param results the apps
+	 * @param systemApp true to compute the digest of the copied system APK, that is its temp file, false for the source APK
+	 * @return one future per app, null for apps with errors
 	 */
-	private static void deleteUserApp(final Context context) throws SystemAppUtilitiesException {
-		// Verify we do have root
-		gainRootAccess();
+	private static List<Future<String>> computeDigests(ExecutorService executor, List<BatchResult> results, final boolean systemApp) {
+		List<Future<String>> digests = new ArrayList<Future<String>>();
 
-		// First, evaluate if the user app is still there
-		String currentFile = getApkName(context, true);
+		for (final BatchResult result : results) {
+			if (result.error != null) {
+				digests.add(null);
+				continue;
+			}
 
-		if (currentFile.startsWith("/system/")) {
-			throw new SystemAppUtilitiesException("User app doesn't exist, only system app is left.");
+			digests.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return getDigest(systemApp ? getBatchTempFile(result) : result.apkFile);
+				}
+			}));
 		}
 
-		String userAppDir;
+		return digests;
+	}
 
-		if (android.os.Build.VERSION.SDK_INT < 20) { // Android 4.4: API 19, Android 5.0: API 21 (first with subfolders for apps)
-			userAppDir = currentFile;
-		} else {
-			userAppDir = currentFile.substring(0, currentFile.lastIndexOf('/'));
+	/**
+	 * Waits for a digest, errors are reported in the result
+	 *
+	 * @param digest the future digest
+	 * @param result the app, the error is set if the digest couldn't be computed
+	 * @return the digest, null in case of an error
+	 */
+	private static String getDigestResult(Future<String> digest, BatchResult result) {
+		try {
+			return digest.get();
+		} catch (ExecutionException e) {
+			result.error = "Unable to compute the digest: " + e.getCause().getMessage();
+		} catch (InterruptedException e) {
+			result.error = "Interrupted while computing the digest.";
 		}
 
-		if (userAppDir.startsWith("/data/app/") && (userAppDir.length() > "/data/app/".length())) {
-			Log.d(TAG, "Using RootTools to delete app from " + userAppDir);
+		return null;
+	}
+
+	/**
+	 * Builds a single command setting owner, mode and SELinux context recursively for an installed app
+	 * Directories get mode 755, files 644, the context is only set if SELinux is available
+	 *
+	 * @param path the app directory or APK file
+	 * @param owner owner and group, e.g. root:root
+	 * @param seContext SELinux context, e.g. u:object_r:system_file:s0
+	 * @return the command
+	 */
+	private static String getSetAttributesCommand(String path, String owner, String seContext) {
+		return "chown -R " + owner + " " + quote(path)
+				+ " && find " + quote(path) + " -type d -exec chmod 755 {} \\;"
+				+ " && find " + quote(path) + " -type f -exec chmod 644 {} \\;"
+				+ " && { [ ! -d /sys/fs/selinux ] || chcon -R " + seContext + " " + quote(path) + "; }";
+	}
 
-			boolean deletedDataApp = RootTools.deleteFileOrDirectory(userAppDir, false);
+	/**
+	 * Sets owner, mode and SELinux context recursively for an installed app in one shell call and verifies them
+	 *
+	 * @param path the app directory or APK file
+	 * @param owner owner and group, e.g. root:root
+	 * @param seContext SELinux context, e.g. u:object_r:system_file:s0
+	 * @throws SystemAppUtilitiesException if setting the attributes failed or the verification found mismatches
+	 */
+	private static void applyAttributes(String path, String owner, String seContext) throws SystemAppUtilitiesException {
+		Log.d(TAG, "Setting owner " + owner + " and context " + seContext + " for " + path);
 
-			if (!deletedDataApp) {
-				throw new SystemAppUtilitiesException("Unable to delete the file " + userAppDir + ".");
-			}
+		if (!executeCommand(getSetAttributesCommand(path, owner, seContext))) {
+			throw new SystemAppUtilitiesException("Unable to set owner, mode and SELinux context of " + path + ".");
 		}
+
+		verifyAttributes(path, owner, seContext);
 	}
 
 	/**
-	 * Deletes the app data from the data partition, like doing so in the Android settings
-	 *
-	 * CAUTION! This could lead to problems on various Android versions!
+	 * Verifies owner, mode and SELinux context of an installed app, see getSetAttributesCommand(...)
+	 * If the device lacks find or stat, the verification is skipped, but listing nothing at all is an error
 	 *
-	 * @param context app context
-	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 * @param path the app directory or APK file
+	 * @param owner expected owner and group, e.g. root:root
+	 * @param seContext expected SELinux context, e.g. u:object_r:system_file:s0
+	 * @throws SystemAppUtilitiesException if any mismatches were found, the message lists all of them
 	 */
-	private static void deleteAppData(final Context context) throws SystemAppUtilitiesException {
-		// Verify we do have root
-		gainRootAccess();
+	private static void verifyAttributes(String path, String owner, String seContext) throws SystemAppUtilitiesException {
+		List<String> output = new ArrayList<String>();
 
-		String dataDir = context.getApplicationInfo().dataDir;
+		// One line per entry: type, owner, mode, context and name, the name may contain spaces, so it comes last
+		boolean listed = executeCommand("find " + quote(path) + " -type d -exec stat -c 'd %U:%G %a %C %n' {} \\;"
+				+ " && find " + quote(path) + " -type f -exec stat -c 'f %U:%G %a %C %n' {} \\;", output);
 
-		if (dataDir.contains(context.getPackageName())) { // TODO: Is this a good idea? Or is it better to just search for app name?
-			Log.d(TAG, "Using RootTools to delete data from " + dataDir);
+		if (!listed) {
+			Log.d(TAG, "Unable to verify the attributes of " + path + ", skipping");
+			return;
+		}
+
+		if (output.isEmpty()) {
+			throw new SystemAppUtilitiesException("Unable to verify the attributes of " + path + ", nothing has been listed.");
+		}
+
+		boolean checkContext = new File("/sys/fs/selinux").isDirectory();
+		StringBuilder mismatches = new StringBuilder();
+
+		for (String line : output) {
+			String[] fields = line.trim().split(" ", 5);
+
+			if (fields.length < 5) {
+				continue;
+			}
 
-			boolean deletedDataDir = RootTools.deleteFileOrDirectory(dataDir, false);
+			String expectedMode = "d".equals(fields[0]) ? "755" : "644";
 
-			if (!deletedDataDir) {
-				throw new SystemAppUtilitiesException("Unable to delete the directory " + dataDir + ".");
+			if (!owner.equals(fields[1])) {
+				mismatches.append("\n").append(fields[4]).append(": owner ").append(fields[1]).append(" instead of ").append(owner);
+			}
+
+			if (!expectedMode.equals(fields[2])) {
+				mismatches.append("\n").append(fields[4]).append(": mode ").append(fields[2]).append(" instead of ").append(expectedMode);
+			}
+
+			if (checkContext && !seContext.equals(fields[3])) {
+				mismatches.append("\n").append(fields[4]).append(": context ").append(fields[3]).append(" instead of ").append(seContext);
 			}
 		}
+
+		if (mismatches.length() > 0) {
+			Log.d(TAG, "Attribute mismatches:" + mismatches);
+			throw new SystemAppUtilitiesException("Wrong owner, mode or SELinux context after installing to " + path + ":" + mismatches);
+		}
 	}
 
 	/**
-	 * Checks the result of any AsyncTask
-	 * In case of a success, it shows a dialog asking you to reboot your device
-	 * In case of an error, it shows a dialog containing the error message
+	 * Computes the SHA-256 digest of a file, see getDigest(...)
 	 *
-	 * @param result true if successful, false if an error occurred
-	 * @param context app context
-	 * @param error error exception, null if successful
+	 * @param file full path of the file
+	 * @return the digest as hex string, null if the file couldn't be read
 	 */
-	private static void checkResult(Boolean result, final Context context, SystemAppUtilitiesException error) {
-		if (result) {
-			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-			builder.setTitle(R.string.complete_title)
-					.setMessage(R.string.complete_reboot)
-					.setNegativeButton(R.string.button_soft_reboot, new OnClickListener() {
-						@Override
-						public void onClick(DialogInterface dialog, int which) {
-							rebootDevice(((Dialog) dialog).getContext(), true);
-						}
-					})
-					.setPositiveButton(R.string.button_reboot, new OnClickListener() {
-						@Override
-						public void onClick(DialogInterface dialog, int which) {
-							rebootDevice(((Dialog) dialog).getContext(), false);
-						}
-					})
-					.setNeutralButton(R.string.button_no, null)
-					.show();
-		} else {
-			AlertDialog.Builder builder = new AlertDialog.Builder(context);
-			String message;
+	private static String getDigestOrNull(String file) {
+		try {
+			return getDigest(file);
+		} catch (IOException e) {
+			return null;
+		}
+	}
 
-			if (error != null) {
-				message = error.getMessage();
-			} else {
-				message = "Unknown Error";
+	/**
+	 * Computes the SHA-256 digest of a file, APKs are world-readable, so no root is needed
+	 *
+	 * @param file full path of the file
+	 * @return the digest as hex string
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static String getDigest(String file) throws IOException {
+		MessageDigest digest;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 isn't available", e);
+		}
+
+		InputStream in = new FileInputStream(file);
+
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
 			}
+		} finally {
+			in.close();
+		}
 
-			builder.setMessage(message)
-					.setNeutralButton(android.R.string.ok, null)
-					.show();
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b & 0xff));
 		}
+
+		return hex.toString();
 	}
 
 	/**
-	 * Starts an AsyncTask to reboot the device
-	 * This can be done by a soft reboot, that's just restarting zygote, or doing a complete Unix like reboot
+	 * Quotes a string to be used as a single argument on the command line
+	 *
+	 * @param argument the argument
+	 * @return the quoted argument
+	 */
+	private static String quote(String argument) {
+		return "'" + argument.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Backs up the app data as a gzip compressed tar stream, e.g. before clearing the app data or uninstalling
+	 * The data is streamed from a root-side tar through a fixed size buffer, so memory use doesn't depend on its size
+	 * This blocks until the backup is finished, so don't call it on the main thread
 	 *
 	 * @param context app context
-	 * @param softReboot decides whether doing a soft or complete reboot
+	 * @param out stream the backup is written to, it is finished but not closed
+	 * @return sizes and throughput of the backup
+	 * @throws SystemAppUtilitiesException in case of an error, check message
 	 */
-	public static void rebootDevice(final Context context, final boolean softReboot) {
-		AsyncTask<Void, Void, Boolean> task = new AsyncTask<Void, Void, Boolean>() {
-			ProgressDialog progress = null;
+	public static TransferStats backupAppData(final Context context, final OutputStream out) throws SystemAppUtilitiesException {
+		// Verify we do have root
+		gainRootAccess();
 
-			@Override
-			protected void onPreExecute() {
-				super.onPreExecute();
-				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(R.string.progress_title));
-			}
+		String dataDir = context.getApplicationInfo().dataDir;
+		String parentDir = dataDir.substring(0, dataDir.lastIndexOf('/'));
+		String dataDirName = dataDir.substring(dataDir.lastIndexOf('/') + 1);
 
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				String command = "reboot";
+		Log.d(TAG, "Backing up " + dataDir);
 
-				if (softReboot) {
-					// Using RootTools.restartAndroid() simply kills the zygote process and lets Android restart it, but allegedly this doesn't work on all devices
-					// This command is used by the Xposed Installer as well as GravityBox and should work more reliable
-					command = "setprop ctl.restart surfaceflinger; setprop ctl.restart zygote";
-				}
+		long start = SystemClock.elapsedRealtime();
+		Process process;
 
-				return executeCommand(command);
-			}
+		try {
+			process = startRootProcess("tar -cf - -C " + quote(parentDir) + " " + quote(dataDirName));
+		} catch (IOException e) {
+			throw new SystemAppUtilitiesException("Unable to start tar.", e);
+		}
 
-			@Override
-			protected void onPostExecute(Boolean result) {
-				progress.dismiss();
+		ErrorCollector errors = new ErrorCollector(process);
+		CountingOutputStream compressed = new CountingOutputStream(out);
+		long rawBytes = 0;
 
-				if (!result) {
-					Log.d(TAG, "Reboot via RootTools failed");
-					AlertDialog.Builder builder = new AlertDialog.Builder(context);
-					builder.setMessage("Unable to reboot automatically. Please reboot your phone manually.")
-							.setNeutralButton(R.string.button_ok, null)
-							.show();
-				}
+		try {
+			InputStream in = process.getInputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed, TRANSFER_BUFFER_SIZE);
+			byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				gzip.write(buffer, 0, read);
+				rawBytes += read;
 			}
-		};
 
-		task.execute((Void) null);
+			gzip.finish();
+			compressed.flush();
+		} catch (IOException e) {
+			process.destroy();
+			throw new SystemAppUtilitiesException("Unable to back up " + dataDir + ": " + e.getMessage(), e);
+		}
+
+		if (waitForExitCode(process) != 0) {
+			throw new SystemAppUtilitiesException("Unable to back up " + dataDir + ": " + errors.getErrors());
+		}
+
+		TransferStats stats = new TransferStats(rawBytes, compressed.getCount(), SystemClock.elapsedRealtime() - start);
+
+		Log.d(TAG, "Backup finished: " + stats);
+
+		return stats;
 	}
 
 	/**
-	 * Executes a command on the command line
+	 * Restores the app data from a backup created by backupAppData(...), the current app data is replaced completely
+	 * The backup is extracted next to the data dir first and only swapped in once tar succeeded, on any error the current data is kept
+	 * Owners are taken from the archive, only the ones of the old app uid and its cache group are mapped, as the app may have got a different uid since the backup
+	 * This blocks until the restore is finished, so don't call it on the main thread
 	 *
-	 * Possible exceptions are only logged via Android logging, because they most probably don't even occur
+	 * CAUTION! The running app loses all its data, so better restart it afterwards!
 	 *
-	 * @param command the command string
-	 * @return true if execution was successful, false otherwise
+	 * @param context app context
+	 * @param in stream the backup is read from, it is not closed
+	 * @return sizes and throughput of the restore
+	 * @throws SystemAppUtilitiesException in case of an error, check message
 	 */
-	private static boolean executeCommand(String command) {
-		Command cmd = new Command(100, command);
+	public static TransferStats restoreAppData(final Context context, final InputStream in) throws SystemAppUtilitiesException {
+		// Verify we do have root
+		gainRootAccess();
+
+		String dataDir = context.getApplicationInfo().dataDir;
+		String dataDirName = dataDir.substring(dataDir.lastIndexOf('/') + 1);
+		String stagingDir = dataDir + ".restore";
+		String restoredDir = stagingDir + "/" + dataDirName;
+		String oldDir = dataDir + ".old";
+		int uid = context.getApplicationInfo().uid;
+		int cacheGid = getCacheGid(uid);
+
+		if (!dataDir.contains(context.getPackageName())) { // same check as in planDeleteAppData(...)
+			throw new SystemAppUtilitiesException("Unexpected data directory " + dataDir + ".");
+		}
+
+		Log.d(TAG, "Restoring " + dataDir);
 
+		long start = SystemClock.elapsedRealtime();
+		CountingInputStream compressed = new CountingInputStream(in);
+		GZIPInputStream gzip;
+
+		// Read the gzip header before starting anything, so a broken backup doesn't even get near the data dir
 		try {
-			RootTools.getShell(true).add(cmd);
+			gzip = new GZIPInputStream(compressed, TRANSFER_BUFFER_SIZE);
 		} catch (IOException e) {
-			Log.d(TAG, "IOException on executeCommand");
-			return false;
-		} catch (RootDeniedException e) {
-			Log.d(TAG, "RootDeniedException on executeCommand");
-			return false;
-		} catch (TimeoutException e) {
-			Log.d(TAG, "TimeoutException on executeCommand");
-			return false;
+			throw new SystemAppUtilitiesException("Unable to restore " + dataDir + ": " + e.getMessage(), e);
 		}
 
-		int count = 0;
+		Process process;
 
-		while (!cmd.isFinished() && (count < 100)) {
-			Log.d(TAG, "sleeping 100");
-			try { Thread.sleep(100); } catch (InterruptedException ignored) { }
-			count++;
+		// Extract into the staging dir, map the owners of the old uid, apply the SELinux context of the current data dir (it includes app specific categories on newer Android versions) and only then swap the dirs
+		try {
+			process = startRootProcess("{ [ -e " + quote(dataDir) + " ] || [ ! -d " + quote(oldDir) + " ] || mv " + quote(oldDir) + " " + quote(dataDir) + "; }" // an interrupted swap
+					+ " && rm -rf " + quote(stagingDir) + " " + quote(oldDir)
+					+ " && mkdir -p " + quote(stagingDir)
+					+ " && tar -xpf - -C " + quote(stagingDir)
+					+ " && [ -d " + quote(restoredDir) + " ]"
+					+ " && old=$(stat -c %u " + quote(restoredDir) + ")"
+					+ " && { [ \"$old\" = " + uid + " ]"
+					+ " || { find " + quote(restoredDir) + " -user \"$old\" -exec chown " + uid + " {} \\;"
+					+ " && find " + quote(restoredDir) + " -group \"$old\" -exec chgrp " + uid + " {} \\;"
+					+ " && find " + quote(restoredDir) + " -group $((old / " + AID_USER_OFFSET + " * " + AID_USER_OFFSET + " + old % " + AID_USER_OFFSET + " - " + AID_APP_START + " + " + AID_CACHE_GID_START + ")) -exec chgrp " + cacheGid + " {} \\;; }; }"
+					+ " && { context=$(stat -c %C " + quote(dataDir) + " 2>/dev/null); true; }"
+					+ " && { [ -z \"$context\" ] || [ \"$context\" = \"?\" ] || chcon -R \"$context\" " + quote(restoredDir) + "; }"
+					+ " && mv " + quote(dataDir) + " " + quote(oldDir)
+					+ " && { mv " + quote(restoredDir) + " " + quote(dataDir) + " || { mv " + quote(oldDir) + " " + quote(dataDir) + "; false; }; }"
+					+ " && rm -rf " + quote(oldDir) + " " + quote(stagingDir));
+		} catch (IOException e) {
+			throw new SystemAppUtilitiesException("Unable to start tar.", e);
 		}
 
-		return cmd.getExitCode() == 0; // true if OK
+		ErrorCollector errors = new ErrorCollector(process);
+		long rawBytes = 0;
+
+		try {
+			OutputStream out = process.getOutputStream();
+			byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+			int read;
+
+			while ((read = gzip.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				rawBytes += read;
+			}
+
+			out.close(); // lets tar finish
+		} catch (IOException e) {
+			process.destroy();
+			waitForExitCode(process);
+			discardRestore(stagingDir);
+			throw new SystemAppUtilitiesException("Unable to restore " + dataDir + ": " + e.getMessage() + " " + errors.getErrors(), e);
+		}
+
+		if (waitForExitCode(process) != 0) {
+			discardRestore(stagingDir);
+			throw new SystemAppUtilitiesException("Unable to restore " + dataDir + ": " + errors.getErrors());
+		}
+
+		TransferStats stats = new TransferStats(rawBytes, compressed.getCount(), SystemClock.elapsedRealtime() - start);
+
+		Log.d(TAG, "Restore finished: " + stats);
+
+		return stats;
+	}
+
+	/**
+	 * Computes the group of the cache dirs of an app, like Android's multiuser_get_cache_gid(...)
+	 * The same formula is used in the shell by restoreAppData(...)
+	 *
+	 * @param uid uid of the app
+	 * @return the cache group, e.g. 20057 for uid 10057, 1020057 for uid 1010057
+	 */
+	private static int getCacheGid(int uid) {
+		return (uid / AID_USER_OFFSET) * AID_USER_OFFSET + (uid % AID_USER_OFFSET - AID_APP_START) + AID_CACHE_GID_START;
+	}
+
+	/**
+	 * Removes the staging dir of a failed restore, the current app data is left alone
+	 *
+	 * @param stagingDir staging dir of the restore
+	 */
+	private static void discardRestore(final String stagingDir) {
+		List<String> output = new ArrayList<String>();
+
+		if (!executeCommand("rm -rf " + quote(stagingDir), output)) {
+			Log.w(TAG, "Unable to remove " + stagingDir + ": " + output);
+		}
+	}
+
+	/**
+	 * Returns the APK file name, by request including its full path
+	 *
+	 * @param context app context
+	 * @param includeFullPath decides if the full path should be included or not
+	 * @return APK file name, including its full path or not
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static String getApkName(final Context context, boolean includeFullPath) throws SystemAppUtilitiesException {
+		String fullPath = context.getApplicationInfo().sourceDir;
+
+		if (fullPath.isEmpty() || (fullPath.lastIndexOf('/') == -1)) {
+			throw new SystemAppUtilitiesException("Unable to find the path to the APK. Is it already uninstalled? Did you remember to reboot after uninstalling? Current location appears to be " + fullPath + ".");
+		}
+
+		if (!includeFullPath) {
+			fullPath = fullPath.substring(fullPath.lastIndexOf('/') + 1);
+		}
+
+		return fullPath;
+	}
+
+	/**
+	 * Plans copying the user app, if existing, to the system partition
+	 *
+	 * @param context app context
+	 * @param overwriteIfExists decides if an existing system app should be overwritten or not
+	 * @param mode how the system app is written
+	 * @return the plan
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planCopyAppToSystem(final Context context, final boolean overwriteIfExists, final InstallMode mode) throws SystemAppUtilitiesException {
+		// Copy the file to system partition
+		String currentFile = getApkName(context, true);
+
+		if (currentFile.startsWith("/system/")) {
+			throw new SystemAppUtilitiesException("Only a system app is available but no user app.");
+		}
+
+		if (mode == InstallMode.SYSTEMLESS) {
+			return planInstallSystemless(currentFile, overwriteIfExists);
+		}
+
+		Plan plan = new Plan((mode == InstallMode.DELTA) ? Operation.UPDATE_SYSTEM_APP : Operation.INSTALL_SYSTEM_APP);
+		boolean systemAppExists = planExists(plan, systemAppFile, false);
+
+		// The APK at the system path may just be the mount of a systemless install, writing there would end up in the
+		// module, and uninstalling only removes the module, so a systemless install has to be uninstalled first
+		if (systemAppExists && planExists(plan, MAGISK_MODULES_PATH, true) && planExists(plan, systemlessModulePath, true)) {
+			throw new SystemAppUtilitiesException("The app is installed systemless, uninstall it first.");
+		}
+
+		addGainRootStep(plan);
+
+		if (systemAppExists && !overwriteIfExists && (mode != InstallMode.DELTA)) {
+			// The replacement below overwrites existing files, so throw an exception if the file exists
+			throw new SystemAppUtilitiesException("The file " + systemAppFile + " already exists.");
+		}
+
+		addReplaceSystemAppSteps(plan, context, currentFile, systemAppExists, systemAppExists && (mode == InstallMode.DELTA));
+
+		return plan;
+	}
+
+	/**
+	 * Adds the steps writing the user app to the system partition without a window where no system app exists at all
+	 *
+	 * The APK is streamed into a temp file next to the system app, synced to disk and given its owner, mode and
+	 * SELinux context, all in one shell command. After verifying its digest, it's renamed over the old system app,
+	 * which is atomic. Every step is recorded in a journal, so planRecoverSystemApp(...) can complete or roll back an
+	 * interrupted replacement.
+	 *
+	 * For a delta update, the temp file is a copy of the system app patched with the changed blocks instead, see
+	 * stageSystemAppDelta(...), the system app itself is never written to.
+	 *
+	 * @param plan the plan the steps are added to
+	 * @param context app context
+	 * @param currentFile full path of the user app
+	 * @param systemAppExists whether there is a system app to be replaced
+	 * @param delta true to patch a copy of the existing system app, if that isn't possible, the user app is copied
+	 */
+	private static void addReplaceSystemAppSteps(final Plan plan, final Context context, final String currentFile, final boolean systemAppExists, final boolean delta) {
+		final String tempFile = systemAppFile + ".tmp";
+		final String[] digest = new String[1]; // computed by the first step, checked by the later ones
+		final String syncAndSetAttributes = "(fsync " + quote(tempFile) + " 2>/dev/null || sync)"
+				+ " && " + getSetAttributesCommand(tempFile, SYSTEM_APP_OWNER, SYSTEM_APP_CONTEXT);
+		final IoPolicy policy = ioPolicy;
+		long size = new File(currentFile).length();
+
+		plan.add(new Step("Compute the digest of " + currentFile, null, size, 0, 0, 0) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				digest[0] = getDigestOrNull(currentFile);
+
+				if (digest[0] == null) {
+					throw new SystemAppUtilitiesException("Unable to read the file " + currentFile + ".");
+				}
+			}
+		});
+
+		addRemountSteps(plan, systemAppFile.substring(0, systemAppFile.lastIndexOf('/')));
+
+		// Which blocks changed is only known after hashing both APKs, so the costs of a delta update are estimated for
+		// the worst case, that is hashing both APKs, copying and verifying the system app and then copying the user app
+		long systemSize = delta ? new File(systemAppFile).length() : 0;
+
+		plan.add(new Step(delta
+				? "Copy " + systemAppFile + " to " + tempFile + ", rewrite the blocks that changed in " + currentFile + ", or copy all of it if that isn't possible, and set its owner, mode and SELinux context"
+				: "Copy " + currentFile + " to " + tempFile + " and set its owner, mode and SELinux context",
+				getCopyCommand(currentFile, tempFile, syncAndSetAttributes, policy, false),
+				size + (delta ? size + 3 * systemSize : 0), size + systemSize, 0, getCopyRoundTrips(size, policy) + (delta ? 3 : 0)) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				writeJournal(context, JOURNAL_STAGING, systemAppFile, tempFile, digest[0]);
+
+				try {
+					if (delta && stageSystemAppDelta(plan, currentFile, tempFile, syncAndSetAttributes, digest[0], policy)) {
+						return;
+					}
+
+					Log.d(TAG, "Copying app from " + currentFile + " to " + tempFile);
+
+					plan.addTransfer(copyFile(currentFile, tempFile, syncAndSetAttributes, policy));
+				} catch (SystemAppUtilitiesException e) {
+					discardTempFile(context, tempFile);
+					throw e;
+				}
+			}
+		});
+
+		plan.add(new Step("Verify digest, owner, mode and SELinux context of " + tempFile, null, size, 0, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				if (!digest[0].equals(getDigestOrNull(tempFile))) {
+					discardTempFile(context, tempFile);
+					throw new SystemAppUtilitiesException("Unable to copy the file " + currentFile + " to " + tempFile + ".");
+				}
+
+				try {
+					// Check before activating it, wrong attributes let booting fail
+					verifyAttributes(tempFile, SYSTEM_APP_OWNER, SYSTEM_APP_CONTEXT);
+				} catch (SystemAppUtilitiesException e) {
+					discardTempFile(context, tempFile);
+					throw e;
+				}
+
+				writeJournal(context, JOURNAL_STAGED, systemAppFile, tempFile, digest[0]);
+			}
+		});
+
+		// Keep the previous generation for rollbackSystemApp(...), a hardlink costs no bulk data transfer
+		// and keeps owner, mode and SELinux context, as it's the same inode
+		// If hardlinks aren't supported, it is renamed instead, leaving a short window without system app
+		// Only the generation before the previous one is freed, the system app itself lives on as the previous one
+		// A broken system app isn't kept, a rollback to it would break the app, the older generation is left instead
+		if (systemAppExists) {
+			plan.add(new Step("Keep " + systemAppFile + " as " + previousSystemAppFile,
+					"ln -f " + quote(systemAppFile) + " " + quote(previousSystemAppFile) + " || mv -f " + quote(systemAppFile) + " " + quote(previousSystemAppFile),
+					0, 0, new File(previousSystemAppFile).length(), 1) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					if (!isValidApk(systemAppFile)) {
+						Log.d(TAG, "Not keeping the broken " + systemAppFile + " as " + previousSystemAppFile);
+						return;
+					}
+
+					Log.d(TAG, "Keeping " + systemAppFile + " as " + previousSystemAppFile);
+
+					if (!executeCommand(command)) {
+						Log.d(TAG, "Unable to keep the previous generation of the system app");
+					}
+				}
+			});
+		}
+
+		plan.add(new Step("Rename " + tempFile + " to " + systemAppFile, "mv -f " + quote(tempFile) + " " + quote(systemAppFile), 0, 0, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				Log.d(TAG, "Renaming " + tempFile + " to " + systemAppFile);
+
+				// If this fails, the journal is left in the staged state, so the rename can be retried on the next launch
+				if (!executeCommand(command)) {
+					throw new SystemAppUtilitiesException("Unable to rename the file " + tempFile + " to " + systemAppFile + ".");
+				}
+
+				deleteJournal(context);
+			}
+		});
+	}
+
+	/**
+	 * Checks if a file is a readable APK, that is a zip file containing a manifest
+	 *
+	 * @param file full path of the file
+	 * @return true if it is
+	 */
+	private static boolean isValidApk(String file) {
+		try {
+			ZipFile apk = new ZipFile(file);
+
+			try {
+				return apk.getEntry("AndroidManifest.xml") != null;
+			} finally {
+				apk.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "IOException on opening " + file + " as APK");
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes a temp file that didn't make it to the system app, together with its journal
+	 *
+	 * @param context app context
+	 * @param tempFile full path of the temp file
+	 */
+	private static void discardTempFile(final Context context, String tempFile) {
+		executeCommand("rm -f " + quote(tempFile));
+		deleteJournal(context);
+	}
+
+	/**
+	 * Adds the step asking for root, before any step needing it, so planning itself doesn't ask for root
+	 *
+	 * @param plan the plan the step is added to
+	 */
+	private static void addGainRootStep(final Plan plan) {
+		plan.add(new Step("Gain root access", null, 0, 0, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				gainRootAccess();
+			}
+		});
+	}
+
+	/**
+	 * Checks while planning if a file or directory exists, without root if the app can look into its parent directory,
+	 * like on the system partition, otherwise using the root shell, which is recorded as probe of the plan
+	 * File.exists() can't tell a missing file from a denied one, e.g. /data/adb under SELinux, so only a parent that
+	 * is visible and searchable itself is trusted
+	 *
+	 * @param plan the plan being planned
+	 * @param file full path of the file or directory
+	 * @param isDir true for a directory
+	 * @return true if it exists
+	 */
+	private static boolean planExists(final Plan plan, final String file, final boolean isDir) {
+		File path = new File(file);
+		File dir = path.getParentFile();
+
+		if ((dir != null) && dir.isDirectory() && dir.canExecute()) {
+			return isDir ? path.isDirectory() : path.isFile();
+		}
+
+		plan.addProbe("Check if " + file + " exists");
+
+		return rootExists(file, isDir);
+	}
+
+	/**
+	 * Adds the steps remounting a path read-write, and read-only again at the end, even if a later step fails
+	 *
+	 * @param plan the plan the steps are added to
+	 * @param path the path to be remounted
+	 */
+	private static void addRemountSteps(final Plan plan, final String path) {
+		plan.add(new Step("Remount " + path + " read-write", null, 0, 0, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				if (!remount(path, "rw")) {
+					throw new SystemAppUtilitiesException("Unable to remount " + path + " read-write.");
+				}
+			}
+		});
+
+		plan.addFinal(new Step("Remount " + path + " read-only", null, 0, 0, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				if (!remount(path, "ro")) {
+					Log.d(TAG, "Unable to remount " + path + " read-only");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Plans completing or rolling back a system app replacement that has been interrupted, according to the journal
+	 * A verified temp file is renamed to the system app, anything else is deleted
+	 * The temp file is only verified when the plan is run, so planning doesn't read it
+	 *
+	 * @param context app context
+	 * @return the plan, without any steps if nothing has been interrupted
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planRecoverSystemApp(final Context context) throws SystemAppUtilitiesException {
+		Plan plan = new Plan(Operation.RECOVER_INTERRUPTED);
+		Properties journal = readJournal(context);
+
+		if (journal == null) {
+			return plan; // nothing to do
+		}
+
+		final String phase = journal.getProperty(JOURNAL_PHASE);
+		final String targetFile = journal.getProperty(JOURNAL_TARGET);
+		final String tempFile = journal.getProperty(JOURNAL_TEMP);
+		final String digest = journal.getProperty(JOURNAL_DIGEST);
+
+		if ((targetFile == null) || (tempFile == null) || (digest == null)) {
+			plan.add(new Step("Delete the corrupted journal", null, 0, 0, 0, 0) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					deleteJournal(context);
+					throw new SystemAppUtilitiesException("The journal is corrupted, nothing has been recovered.");
+				}
+			});
+
+			return plan;
+		}
+
+		addGainRootStep(plan);
+		addRemountSteps(plan, targetFile.substring(0, targetFile.lastIndexOf('/')));
+
+		// Either the temp file is incomplete, or it is gone because the rename already happened, then it is deleted
+		final long tempSize = new File(tempFile).length();
+
+		plan.add(new Step("Verify " + tempFile + ", then rename it to " + targetFile + ", otherwise delete it", null, tempSize, 0, tempSize, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				if (JOURNAL_STAGED.equals(phase) && digest.equals(getDigestOrNull(tempFile))) {
+					Log.d(TAG, "Recovering: renaming " + tempFile + " to " + targetFile);
+
+					if (!executeCommand("mv -f " + quote(tempFile) + " " + quote(targetFile))) {
+						throw new SystemAppUtilitiesException("Unable to rename the file " + tempFile + " to " + targetFile + ".");
+					}
+				} else {
+					Log.d(TAG, "Recovering: deleting " + tempFile);
+
+					if (!executeCommand("rm -f " + quote(tempFile))) {
+						throw new SystemAppUtilitiesException("Unable to delete the file " + tempFile + ".");
+					}
+				}
+
+				deleteJournal(context);
+			}
+		});
+
+		return plan;
+	}
+
+	private static File getJournalFile(final Context context) {
+		return new File(context.getFilesDir(), JOURNAL_FILE);
+	}
+
+	/**
+	 * Writes the journal, first to a temp file which is synced and then renamed, so the journal is never incomplete
+	 *
+	 * @param context app context
+	 * @param phase JOURNAL_STAGING or JOURNAL_STAGED
+	 * @param targetFile full path of the system app
+	 * @param tempFile full path of the temp file
+	 * @param digest digest of the user app
+	 * @throws SystemAppUtilitiesException if the journal couldn't be written
+	 */
+	private static void writeJournal(final Context context, String phase, String targetFile, String tempFile, String digest) throws SystemAppUtilitiesException {
+		Properties journal = new Properties();
+		journal.setProperty(JOURNAL_PHASE, phase);
+		journal.setProperty(JOURNAL_TARGET, targetFile);
+		journal.setProperty(JOURNAL_TEMP, tempFile);
+		journal.setProperty(JOURNAL_DIGEST, digest);
+
+		File file = getJournalFile(context);
+		File journalTempFile = new File(file.getPath() + ".tmp");
+
+		try {
+			FileOutputStream out = new FileOutputStream(journalTempFile);
+
+			try {
+				journal.store(out, null);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new SystemAppUtilitiesException("Unable to write the journal " + journalTempFile + ".", e);
+		}
+
+		if (!journalTempFile.renameTo(file)) {
+			throw new SystemAppUtilitiesException("Unable to write the journal " + file + ".");
+		}
+	}
+
+	/**
+	 * Reads the journal
+	 *
+	 * @param context app context
+	 * @return the journal, null if there is none
+	 */
+	private static Properties readJournal(final Context context) {
+		File file = getJournalFile(context);
+
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties journal = new Properties();
+
+		try {
+			InputStream in = new FileInputStream(file);
+
+			try {
+				journal.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "IOException on reading the journal");
+		}
+
+		return journal;
+	}
+
+	private static void deleteJournal(final Context context) {
+		File file = getJournalFile(context);
+
+		if (file.exists() && !file.delete()) {
+			Log.d(TAG, "Unable to delete the journal " + file);
+		}
+	}
+
+	/**
+	 * Plans making the user app a system app without writing to the system partition at all, using a Magisk module
+	 *
+	 * The module contains the APK at its system path, Magisk mounts it there at boot, before the package manager scans
+	 * the system apps. The APK is hardlinked from the user app, which is on the same partition, so this takes the same
+	 * time regardless of the APK size. Owner, mode and SELinux context of the user app are kept, system_server and
+	 * zygote can read those anyway. Uninstalling just removes the module, so the mount is gone after the next reboot.
+	 *
+	 * Unlike a real system app, this doesn't survive a factory reset, as the module is on the data partition.
+	 * It's refused if the app has been copied to the system partition already, uninstalling would only remove one of both.
+	 *
+	 * @param currentFile full path of the user app
+	 * @param overwriteIfExists decides if an existing module should be overwritten or not
+	 * @return the plan
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planInstallSystemless(String currentFile, final boolean overwriteIfExists) throws SystemAppUtilitiesException {
+		Plan plan = new Plan(Operation.INSTALL_SYSTEMLESS);
+
+		if (!planExists(plan, MAGISK_MODULES_PATH, true)) {
+			throw new SystemAppUtilitiesException("Systemless mode needs Magisk, but " + MAGISK_MODULES_PATH + " doesn't exist.");
+		}
+
+		boolean moduleExists = planExists(plan, systemlessModulePath, true);
+
+		if (!overwriteIfExists && moduleExists) {
+			throw new SystemAppUtilitiesException("The module " + systemlessModulePath + " already exists.");
+		}
+
+		// Without the module, an APK at the system path is a copied system app, uninstalling the module would leave it behind
+		if (!moduleExists && planExists(plan, systemAppFile, false)) {
+			throw new SystemAppUtilitiesException("The system app " + systemAppFile + " already exists, uninstall it first, or reboot if it is the mount of a removed module.");
+		}
+
+		String moduleAppFile = systemlessModulePath + systemAppFile;
+		String moduleAppPath = moduleAppFile.substring(0, moduleAppFile.lastIndexOf('/'));
+		String moduleProp = "id=" + BuildConfig.APPLICATION_ID + "\n"
+				+ "name=" + BuildConfig.APPLICATION_ID + " (systemless)\n"
+				+ "version=" + BuildConfig.VERSION_NAME + "\n"
+				+ "versionCode=" + BuildConfig.VERSION_CODE + "\n"
+				+ "author=SystemAppUtilities\n"
+				+ "description=Mounts " + BuildConfig.APPLICATION_ID + " as system app, created by the app itself\n";
+
+		addGainRootStep(plan);
+
+		// A hardlink shouldn't fail on the same partition, but if it does, copy the file as a last resort
+		// A former removal or disabling of the module is undone, and the module is created in one go
+		plan.add(new Step("Create the module " + systemlessModulePath + " and link " + currentFile + " to " + moduleAppFile,
+				"mkdir -p " + quote(moduleAppPath)
+						+ " && rm -f " + quote(moduleAppFile) + " " + quote(systemlessModulePath + "/remove") + " " + quote(systemlessModulePath + "/disable")
+						+ " && { ln " + quote(currentFile) + " " + quote(moduleAppFile) + " || cp " + quote(currentFile) + " " + quote(moduleAppFile) + "; }"
+						+ " && printf '%s' " + quote(moduleProp) + " > " + quote(systemlessModulePath + "/module.prop")
+						+ " && find " + quote(systemlessModulePath) + " -type d -exec chmod 755 {} \\;",
+				0, moduleProp.getBytes(Charset.forName("UTF-8")).length, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				Log.d(TAG, "Creating the module " + systemlessModulePath);
+
+				if (!executeCommand(command)) {
+					executeCommand("rm -rf " + quote(systemlessModulePath));
+					throw new SystemAppUtilitiesException("Unable to create the module " + systemlessModulePath + ".");
+				}
+			}
+		});
+
+		return plan;
+	}
+
+	/**
+	 * Stages a delta update: copies the existing system app to the temp file and only rewrites the blocks that
+	 * differ from the user app there, the system app itself isn't touched, so an interruption can't break it
+	 * Afterwards, the digest of the temp file is checked, if it doesn't match, the caller has to do a full copy
+	 *
+	 * @param plan the plan the copy is accounted to
+	 * @param currentFile full path of the user app
+	 * @param tempFile full path of the temp file, on the remounted system partition
+	 * @param andThen command run after patching, e.g. syncing and setting attributes
+	 * @param digest digest of the user app
+	 * @param policy the I/O policy
+	 * @return true if the temp file has been patched and verified, false if a full copy is needed
+	 */
+	private static boolean stageSystemAppDelta(Plan plan, String currentFile, String tempFile, String andThen, String digest, IoPolicy policy) {
+		List<byte[]> currentHashes;
+		List<byte[]> systemHashes;
+
+		try {
+			currentHashes = getBlockHashes(currentFile);
+			systemHashes = getBlockHashes(systemAppFile);
+		} catch (IOException e) {
+			Log.d(TAG, "IOException on computing block hashes");
+			return false;
+		}
+
+		// Collect ranges of changed blocks as pairs of first block and block count
+		List<long[]> ranges = new ArrayList<long[]>();
+		long changedBlocks = 0;
+
+		for (int i = 0; i < currentHashes.size(); i++) {
+			if ((i < systemHashes.size()) && MessageDigest.isEqual(currentHashes.get(i), systemHashes.get(i))) {
+				continue;
+			}
+
+			long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+
+			if ((last != null) && (last[0] + last[1] == i)) {
+				last[1]++;
+			} else {
+				ranges.add(new long[] {i, 1});
+			}
+
+			changedBlocks++;
+		}
+
+		long currentSize = new File(currentFile).length();
+		long systemSize = new File(systemAppFile).length();
+
+		Log.d(TAG, "Delta update: " + changedBlocks + " of " + currentHashes.size() + " blocks changed in " + ranges.size() + " ranges");
+
+		// Many small writes are slower than one big copy, so there's no point in patching if most of the file changed
+		if (changedBlocks * 2 > currentHashes.size()) {
+			return false;
+		}
+
+		boolean patchedApp = true;
+
+		try {
+			plan.addTransfer(copyFile(systemAppFile, tempFile, null, policy));
+		} catch (SystemAppUtilitiesException e) {
+			Log.d(TAG, "Delta update: " + e.getMessage());
+			return false;
+		}
+
+		for (long[] range : ranges) {
+			patchedApp = patchedApp && executeCommand(getIoPriorityPrefix(policy, true) + "dd if=" + quote(currentFile) + " of=" + quote(tempFile)
+					+ " bs=" + DELTA_BLOCK_SIZE + " skip=" + range[0] + " seek=" + range[0] + " count=" + range[1] + " conv=notrunc");
+		}
+
+		if (patchedApp && (currentSize < systemSize)) {
+			// dd truncates the output file at the seek position if conv=notrunc isn't given
+			patchedApp = executeCommand("dd if=/dev/null of=" + quote(tempFile) + " bs=1 seek=" + currentSize);
+		}
+
+		if (!patchedApp || !digest.equals(getDigestOrNull(tempFile))) {
+			Log.d(TAG, "Delta update: patching " + tempFile + " failed or its digest doesn't match " + currentFile);
+			return false;
+		}
+
+		return executeCommand(andThen);
+	}
+
+	/**
+	 * Computes the MD5 hashes of all blocks of a file, the last block may be shorter than DELTA_BLOCK_SIZE
+	 * MD5 is sufficient here, the whole file is verified by SHA-256 afterwards anyway
+	 *
+	 * @param file full path of the file
+	 * @return one hash per block
+	 * @throws IOException if the file couldn't be read
+	 */
+	private static List<byte[]> getBlockHashes(String file) throws IOException {
+		MessageDigest digest;
+
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("MD5 isn't available", e);
+		}
+
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		InputStream in = new FileInputStream(file);
+
+		try {
+			byte[] buffer = new byte[DELTA_BLOCK_SIZE];
+			int filled = 0;
+			int read;
+
+			while ((read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+				filled += read;
+
+				if (filled == buffer.length) {
+					digest.update(buffer, 0, filled);
+					hashes.add(digest.digest());
+					filled = 0;
+				}
+			}
+
+			if (filled > 0) {
+				digest.update(buffer, 0, filled);
+				hashes.add(digest.digest());
+			}
+		} finally {
+			in.close();
+		}
+
+		return hashes;
+	}
+
+	/**
+	 * Adds the steps copying the system app, if existing, to the data partition using RootTools
+	 *
+	 * No overwriteIfExists parameter is used here, existing user apps are deleted regardless
+	 * First, it is too annoying to discover an existing app
+	 * Second, this shouldn't be used anyway if there is an existing user app
+	 *
+	 * The purpose of this method is to restore a user app, if it got lost by a factory reset.
+	 *
+	 * @param plan the plan the steps are added to
+	 * @param context app context
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static void addCopyAppToDataSteps(final Plan plan, final Context context) throws SystemAppUtilitiesException {
+		final String currentFile = getApkName(context, true);
+
+		// It shouldn't be necessary to test this, because we tested it before calling this method
+		// Let's do it anyway, if this method is going to be used somewhere else in the future
+		// We don't use isSystemApp(...) here, because, although this should not happen, the app or device probably haven't been restarted
+		if (!planExists(plan, systemAppFile, false)) {
+			throw new SystemAppUtilitiesException("System app doesn't exist, nothing to do.");
+		}
+
+		final String userAppFiles = "/data/app/" + context.getPackageName() + "*";
+		final String targetPath;
+		final String installedPath; // the file or folder that belongs to the app
+		long size = new File(currentFile).length();
+
+		if (android.os.Build.VERSION.SDK_INT < 20) { // Android 4.4: API 19, Android 5.0: API 21 (first with subfolders for apps)
+			// Set the target file name
+			targetPath = "/data/app/" + context.getPackageName() + "-1.apk";
+			installedPath = targetPath;
+		} else {
+			// Set the target file name
+			targetPath = "/data/app/" + context.getPackageName() + "-1/base.apk";
+			// Set the target folder name
+			installedPath = "/data/app/" + context.getPackageName() + "-1";
+		}
+
+		// Although this should never happen, delete possibly existing user app files or folders using a wildcard
+		plan.add(new Step("Delete leftover user app files " + userAppFiles, null, 0, 0, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				boolean deletedUserApp = deleteFileOrDirectory(userAppFiles, true);
+				// It doesn't really matter if this worked, so don't check deletedUserApp
+			}
+		});
+
+		if (!installedPath.equals(targetPath)) {
+			// Create the target folder
+			plan.add(new Step("Create " + installedPath, "mkdir -p " + installedPath, 0, 0, 0, 1) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					if (!executeCommand(command)) {
+						revertCopyAppToData(installedPath);
+						throw new SystemAppUtilitiesException("Unable to copy the file " + currentFile + " to " + targetPath + ".");
+					}
+				}
+			});
+		}
+
+		plan.add(new Step("Copy " + currentFile + " to " + targetPath, null, size, size, 0, 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				Log.d(TAG, "Using RootTools to copy app from " + currentFile + " to " + targetPath);
+
+				if (!copyFileWithRootTools(currentFile, targetPath)) {
+					revertCopyAppToData(installedPath);
+					throw new SystemAppUtilitiesException("Unable to copy the file " + currentFile + " to " + targetPath + ".");
+				}
+			}
+		});
+
+		// Owner, mode and SELinux context of the folder and everything in it, in one go, and their verification
+		plan.add(new Step("Set owner, mode and SELinux context of " + installedPath, getSetAttributesCommand(installedPath, USER_APP_OWNER, USER_APP_CONTEXT), 0, 0, 0, 2) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				try {
+					applyAttributes(installedPath, USER_APP_OWNER, USER_APP_CONTEXT);
+				} catch (SystemAppUtilitiesException e) {
+					revertCopyAppToData(installedPath);
+					throw e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reverts eventually successful parts of the copy to the data partition by deleting the app file or folder
+	 *
+	 * @param installedPath the file or folder that belongs to the app
+	 */
+	private static void revertCopyAppToData(String installedPath) {
+		boolean deletedUserAppDir = deleteFileOrDirectory(installedPath, true);
+	}
+
+	/**
+	 * Plans deleting the system app, if existing, from the system partition using RootTools
+	 * If the user app is gone and should be kept, it's restored from the system app first, see addCopyAppToDataSteps(...)
+	 *
+	 * @param context app context
+	 * @param keepUserApp decides if an existing user app should be kept or deleted
+	 * @return the plan
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planDeleteSystemApp(final Context context, final boolean keepUserApp) throws SystemAppUtilitiesException {
+		Plan plan = new Plan(Operation.UNINSTALL_SYSTEM_APP);
+
+		// A systemless system app is just a module on the data partition, there's nothing to delete on the system partition
+		// Root is needed to look into /data/adb, but there's no need to ask for it if Magisk isn't there at all
+		if (planExists(plan, MAGISK_MODULES_PATH, true) && planExists(plan, systemlessModulePath, true)) {
+			addGainRootStep(plan);
+
+			String currentFile = getApkName(context, true);
+			boolean userAppExists = !currentFile.startsWith("/system/");
+
+			// The module APK is a hardlink of the user app, which is left untouched, unless the user app has been uninstalled before
+			if (keepUserApp && !userAppExists) {
+				addCopyAppToDataSteps(plan, context);
+			}
+
+			// Unmounting may fail if the APK is in use, it's gone after the next reboot anyway
+			// The APK only takes space of its own if it isn't linked to the user app anymore
+			plan.add(new Step("Remove the module " + systemlessModulePath,
+					"umount " + quote(systemAppFile) + " 2>/dev/null; rm -rf " + quote(systemlessModulePath),
+					0, 0, userAppExists ? 0 : new File(currentFile).length(), 1) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					Log.d(TAG, "Removing the module " + systemlessModulePath);
+
+					if (!executeCommand(command)) {
+						throw new SystemAppUtilitiesException("Unable to delete the module " + systemlessModulePath + ".");
+					}
+				}
+			});
+
+			return plan;
+		}
+
+		// We don't use isSystemApp(...) here, because, although this should not happen, the app or device probably haven't been restarted
+		if (!planExists(plan, systemAppFile, false)) {
+			throw new SystemAppUtilitiesException("System app doesn't exist, nothing to do.");
+		}
+
+		addGainRootStep(plan);
+
+		// First, evaluate if the user app is still there
+		String currentFile = getApkName(context, true);
+
+		if (currentFile.startsWith("/system/")) {
+			// Only the system app is left, most likely because of a factory reset
+			if (keepUserApp) {
+				addCopyAppToDataSteps(plan, context);
+			}
+		}
+
+		// RootTools remounts the system partition read-write and read-only again for each file
+		plan.add(new Step("Delete " + systemAppFile, null, 0, 0, new File(systemAppFile).length(), 3) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				Log.d(TAG, "Using RootTools to delete app from " + systemAppFile);
+
+				// Delete app on system partition
+				boolean deletedSystemApp = deleteFileOrDirectory(systemAppFile, true);
+
+				if (!deletedSystemApp) {
+					throw new SystemAppUtilitiesException("Unable to delete the file " + systemAppFile + ".");
+				}
+			}
+		});
+
+		// The previous generation is never the same inode as the system app, see addReplaceSystemAppSteps(...)
+		if (planExists(plan, previousSystemAppFile, false)) {
+			plan.add(new Step("Delete " + previousSystemAppFile, null, 0, 0, new File(previousSystemAppFile).length(), 3) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					boolean deletedPreviousSystemApp = deleteFileOrDirectory(previousSystemAppFile, true);
+					// The system app is gone anyway, so it doesn't really matter if this worked, don't check deletedPreviousSystemApp
+				}
+			});
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Plans restoring the previous generation of the system app by renaming it over the current one
+	 *
+	 * @return the plan
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planRestorePreviousSystemApp() throws SystemAppUtilitiesException {
+		Plan plan = new Plan(Operation.ROLLBACK_SYSTEM_APP);
+
+		if (!planExists(plan, previousSystemAppFile, false)) {
+			throw new SystemAppUtilitiesException("No previous system app available, nothing to do.");
+		}
+
+		addGainRootStep(plan);
+		addRemountSteps(plan, systemAppFile.substring(0, systemAppFile.lastIndexOf('/')));
+
+		plan.add(new Step("Rename " + previousSystemAppFile + " to " + systemAppFile,
+				"mv -f " + quote(previousSystemAppFile) + " " + quote(systemAppFile),
+				0, 0, new File(systemAppFile).length(), 1) {
+			@Override
+			void run() throws SystemAppUtilitiesException {
+				Log.d(TAG, "Renaming " + previousSystemAppFile + " to " + systemAppFile);
+
+				if (!executeCommand(command)) {
+					throw new SystemAppUtilitiesException("Unable to rename the file " + previousSystemAppFile + " to " + systemAppFile + ".");
+				}
+			}
+		});
+
+		return plan;
+	}
+
+	/**
+	 * Plans deleting the user app, if existing, from the data partition using RootTools
+	 * This doesn't care about if there is a system app, so it maybe lead to a complete uninstall
+	 *
+	 * CAUTION! This could lead to problems on various Android versions!
+	 *
+	 * @param context app context
+	 * @return the plan
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planDeleteUserApp(final Context context) throws SystemAppUtilitiesException {
+		// First, evaluate if the user app is still there
+		String currentFile = getApkName(context, true);
+
+		if (currentFile.startsWith("/system/")) {
+			throw new SystemAppUtilitiesException("User app doesn't exist, only system app is left.");
+		}
+
+		final String userAppDir;
+
+		if (android.os.Build.VERSION.SDK_INT < 20) { // Android 4.4: API 19, Android 5.0: API 21 (first with subfolders for apps)
+			userAppDir = currentFile;
+		} else {
+			userAppDir = currentFile.substring(0, currentFile.lastIndexOf('/'));
+		}
+
+		final IoPolicy policy = ioPolicy;
+		Plan plan = new Plan(Operation.UNINSTALL_USER_APP);
+
+		if (userAppDir.startsWith("/data/app/") && (userAppDir.length() > "/data/app/".length())) {
+			addGainRootStep(plan);
+
+			plan.add(new Step("Delete " + userAppDir, getIoPriorityPrefix(policy, false) + "rm -rf " + quote(userAppDir), 0, 0, getSize(new File(userAppDir)), 1) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					Log.d(TAG, "Deleting app from " + userAppDir);
+
+					boolean deletedDataApp = executeBulkCommand("rm -rf " + quote(userAppDir), policy);
+
+					if (!deletedDataApp) {
+						throw new SystemAppUtilitiesException("Unable to delete the file " + userAppDir + ".");
+					}
+				}
+			});
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Plans deleting the app data from the data partition, like doing so in the Android settings
+	 *
+	 * CAUTION! This could lead to problems on various Android versions!
+	 *
+	 * @param context app context
+	 * @return the plan
+	 * @throws SystemAppUtilitiesException in case of an error, check message
+	 */
+	private static Plan planDeleteAppData(final Context context) throws SystemAppUtilitiesException {
+		final String dataDir = context.getApplicationInfo().dataDir;
+		final IoPolicy policy = ioPolicy;
+		Plan plan = new Plan(Operation.CLEAR_APP_DATA);
+
+		if (dataDir.contains(context.getPackageName())) { // TODO: Is this a good idea? Or is it better to just search for app name?
+			addGainRootStep(plan);
+
+			// The app owns its data, so its size can be computed without root
+			plan.add(new Step("Delete " + dataDir, getIoPriorityPrefix(policy, false) + "rm -rf " + quote(dataDir), 0, 0, getSize(new File(dataDir)), 1) {
+				@Override
+				void run() throws SystemAppUtilitiesException {
+					Log.d(TAG, "Deleting data from " + dataDir);
+
+					boolean deletedDataDir = executeBulkCommand("rm -rf " + quote(dataDir), policy);
+
+					if (!deletedDataDir) {
+						throw new SystemAppUtilitiesException("Unable to delete the directory " + dataDir + ".");
+					}
+				}
+			});
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Computes the size of a file or a directory including its content, as far as it's readable for the app
+	 * Symbolic links inside a directory are skipped, like rm -r doesn't follow them
+	 *
+	 * @param file the file or directory
+	 * @return size in bytes
+	 */
+	private static long getSize(File file) {
+		File[] children = file.listFiles();
+
+		if (children == null) {
+			return file.length(); // a file, or a directory that isn't readable
+		}
+
+		long size = 0;
+
+		for (File child : children) {
+			try {
+				if (!child.getCanonicalPath().equals(new File(file.getCanonicalFile(), child.getName()).getPath())) {
+					continue; // a symbolic link
+				}
+			} catch (IOException e) {
+				continue;
+			}
+
+			size += getSize(child);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Checks the result of any AsyncTask
+	 * In case of a success, it shows a dialog asking you to reboot your device
+	 * In case of an error, it shows a dialog containing the error message
+	 *
+	 * @param result result of the operation
+	 * @param context app context
+	 */
+	private static void checkResult(OperationResult result, final Context context) {
+		if (result.isSuccessful()) {
+			AlertDialog.Builder builder = new AlertDialog.Builder(context);
+			builder.setTitle(R.string.complete_title)
+					.setMessage(R.string.complete_reboot)
+					.setNegativeButton(R.string.button_soft_reboot, new OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							rebootDevice(((Dialog) dialog).getContext(), true);
+						}
+					})
+					.setPositiveButton(R.string.button_reboot, new OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialog, int which) {
+							rebootDevice(((Dialog) dialog).getContext(), false);
+						}
+					})
+					.setNeutralButton(R.string.button_no, null)
+					.show();
+		} else {
+			AlertDialog.Builder builder = new AlertDialog.Builder(context);
+			String message;
+
+			if (result.error != null) {
+				message = result.error;
+			} else {
+				message = "Unknown Error";
+			}
+
+			builder.setMessage(message)
+					.setNeutralButton(android.R.string.ok, null)
+					.show();
+		}
+	}
+
+	/**
+	 * Starts an AsyncTask to reboot the device
+	 * This can be done by a soft reboot, that's just restarting zygote, or doing a complete Unix like reboot
+	 *
+	 * @param context app context
+	 * @param softReboot decides whether doing a soft or complete reboot
+	 */
+	public static void rebootDevice(final Context context, final boolean softReboot) {
+		AsyncTask<Void, Void, Boolean> task = new AsyncTask<Void, Void, Boolean>() {
+			ProgressDialog progress = null;
+
+			@Override
+			protected void onPreExecute() {
+				super.onPreExecute();
+				progress = ProgressDialog.show(context, context.getText(R.string.progress_title), context.getText(R.string.progress_title));
+			}
+
+			@Override
+			protected Boolean doInBackground(Void... params) {
+				return reboot(softReboot);
+			}
+
+			@Override
+			protected void onPostExecute(Boolean result) {
+				progress.dismiss();
+
+				if (!result) {
+					Log.d(TAG, "Reboot via RootTools failed");
+					AlertDialog.Builder builder = new AlertDialog.Builder(context);
+					builder.setMessage("Unable to reboot automatically. Please reboot your phone manually.")
+							.setNeutralButton(R.string.button_ok, null)
+							.show();
+				}
+			}
+		};
+
+		task.execute((Void) null);
+	}
+
+	/**
+	 * Reboots the device synchronously and without any UI
+	 * This can be done by a soft reboot, that's just restarting zygote, or doing a complete Unix like reboot
+	 *
+	 * @param softReboot decides whether doing a soft or complete reboot
+	 * @return false if the reboot command failed, on success this most probably doesn't return at all
+	 */
+	public static boolean reboot(final boolean softReboot) {
+		String command = "reboot";
+
+		if (softReboot) {
+			// Using RootTools.restartAndroid() simply kills the zygote process and lets Android restart it, but allegedly this doesn't work on all devices
+			// This command is used by the Xposed Installer as well as GravityBox and should work more reliable
+			command = "setprop ctl.restart surfaceflinger; setprop ctl.restart zygote";
+		}
+
+		return executeCommand(command);
+	}
+
+	/**
+	 * Builds the command copying a file as root according to an I/O policy, see copyFile(...)
+	 *
+	 * @param source full path of the source file
+	 * @param target full path of the target file
+	 * @param andThen command run after copying in the same shell call, null for none
+	 * @param policy the I/O policy
+	 * @param probe false while planning, see getIoPriorityPrefix(...)
+	 * @return the command, if the bandwidth is capped, the one of each chunk, with [block] standing for its first block
+	 */
+	private static String getCopyCommand(String source, String target, String andThen, IoPolicy policy, boolean probe) {
+		String copy = (policy.maxBytesPerSecond > 0)
+				? getChunkCommand(source, target, "[block]", getChunkBlocks(policy), true)
+				: "cat " + quote(source) + " > " + quote(target);
+
+		return getIoPriorityPrefix(policy, probe) + copy + ((andThen != null) ? " && " + andThen : "");
+	}
+
+	/**
+	 * Builds the command copying a chunk of a file with dd, blocks are TRANSFER_BUFFER_SIZE bytes
+	 *
+	 * @param source full path of the source file
+	 * @param target full path of the target file
+	 * @param block first block of the chunk
+	 * @param blocks number of blocks of the chunk
+	 * @param keep false to truncate the target first, for the first chunk
+	 * @return the command
+	 */
+	private static String getChunkCommand(String source, String target, String block, long blocks, boolean keep) {
+		return "dd if=" + quote(source) + " of=" + quote(target) + " bs=" + TRANSFER_BUFFER_SIZE
+				+ " skip=" + block + " seek=" + block + " count=" + blocks + (keep ? " conv=notrunc" : "");
+	}
+
+	/**
+	 * @param policy the I/O policy
+	 * @return number of blocks copied per chunk with a bandwidth cap, about a second's worth
+	 */
+	private static long getChunkBlocks(IoPolicy policy) {
+		return Math.max(1, policy.maxBytesPerSecond / TRANSFER_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param size size of the file to be copied
+	 * @param policy the I/O policy
+	 * @return number of root shell round-trips copyFile(...) takes, including the command run after copying
+	 */
+	private static int getCopyRoundTrips(long size, IoPolicy policy) {
+		if (policy.maxBytesPerSecond <= 0) {
+			return 1;
+		}
+
+		long chunkSize = getChunkBlocks(policy) * TRANSFER_BUFFER_SIZE;
+
+		return (int) Math.min(Math.max(1, (size + chunkSize - 1) / chunkSize) + 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Copies a file as root according to an I/O policy and measures the throughput
+	 *
+	 * Without a bandwidth cap, the copy is a single command. With a cap, the file is copied by dd in chunks of about
+	 * a second's worth, pausing between them whenever the copy is ahead of the cap. Either way, everything runs in the
+	 * root shell, which sees its own remount of the system partition, unlike a separate su process on some devices.
+	 *
+	 * @param source full path of the source file
+	 * @param target full path of the target file
+	 * @param andThen command run after copying in the same shell call, e.g. syncing and setting attributes, null for none
+	 * @param policy the I/O policy
+	 * @return bytes copied, duration and throughput
+	 * @throws SystemAppUtilitiesException if copying or the following command failed
+	 */
+	private static TransferStats copyFile(String source, String target, String andThen, IoPolicy policy) throws SystemAppUtilitiesException {
+		long start = SystemClock.elapsedRealtime();
+		long size = new File(source).length();
+		long bytes = 0;
+
+		if (policy.maxBytesPerSecond <= 0) {
+			// The timeout grows with the file size, and a copy that timed out partway isn't started all over again
+			String command = getCopyCommand(source, target, andThen, policy, true);
+			long timeout = shellPolicy.commandTimeout + size * 1000 / MIN_COPY_BYTES_PER_SECOND;
+
+			if (!executeCommand(command, null, (int) Math.min(timeout, Integer.MAX_VALUE), false)) {
+				throw new SystemAppUtilitiesException("Unable to copy the file " + source + " to " + target + ".");
+			}
+
+			bytes = size;
+		} else {
+			String prefix = getIoPriorityPrefix(policy, true);
+			long blocks = getChunkBlocks(policy);
+			long chunkSize = blocks * TRANSFER_BUFFER_SIZE;
+			int timeout = (int) Math.min(shellPolicy.commandTimeout + chunkSize * 1000 / MIN_COPY_BYTES_PER_SECOND, Integer.MAX_VALUE);
+
+			// A chunk always writes the same blocks, so it can be retried, the first one truncates the target
+			for (long block = 0; (block == 0) || (bytes < size); block += blocks) {
+				if (!executeCommand(prefix + getChunkCommand(source, target, String.valueOf(block), blocks, block > 0), null, timeout, true)) {
+					throw new SystemAppUtilitiesException("Unable to copy the file " + source + " to " + target + ".");
+				}
+
+				bytes = Math.min(size, (block + blocks) * TRANSFER_BUFFER_SIZE);
+
+				// Wait until the bytes copied so far are due, so the average never exceeds the cap
+				long ahead = bytes * 1000 / policy.maxBytesPerSecond - (SystemClock.elapsedRealtime() - start);
+
+				if ((ahead > 0) && (bytes < size)) {
+					try { Thread.sleep(ahead); } catch (InterruptedException ignored) { }
+				}
+			}
+
+			if ((andThen != null) && !executeCommand(andThen)) {
+				throw new SystemAppUtilitiesException("Unable to copy the file " + source + " to " + target + ".");
+			}
+		}
+
+		TransferStats stats = new TransferStats(bytes, bytes, SystemClock.elapsedRealtime() - start);
+
+		Log.d(TAG, "Copied " + source + " to " + target + ": " + stats);
+
+		return stats;
+	}
+
+	/**
+	 * Executes a command deleting app files on the data partition according to an I/O policy
+	 * At low priority, it runs in a separate root process instead of the shell, as it takes longer,
+	 * possibly longer than the command timeout of the shell policy, and would block the shell for everything else
+	 *
+	 * @param command the command string, it's prefixed by getIoPriorityPrefix(...) here
+	 * @param policy the I/O policy
+	 * @return true if execution was successful, false otherwise
+	 */
+	private static boolean executeBulkCommand(String command, IoPolicy policy) {
+		command = getIoPriorityPrefix(policy, true) + command;
+
+		if (!policy.lowPriority) {
+			return executeCommand(command);
+		}
+
+		Process process;
+
+		try {
+			process = startRootProcess(command);
+		} catch (IOException e) {
+			Log.d(TAG, "IOException on executeBulkCommand");
+			return false;
+		}
+
+		ErrorCollector errors = new ErrorCollector(process);
+
+		try {
+			process.getOutputStream().close(); // the command doesn't read anything
+		} catch (IOException ignored) { }
+
+		if (waitForExitCode(process) != 0) {
+			Log.d(TAG, "executeBulkCommand failed: " + errors.getErrors());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the prefix lowering the I/O and CPU priority of a command according to an I/O policy
+	 * Whether ionice and nice are available is found out once, toybox has both since Android 6, older devices need busybox
+	 * The lowest best-effort I/O class is used rather than the idle one, so the command can't be starved completely
+	 * Planning doesn't find it out, the plan shows the preferred prefix until a command has been run at low priority
+	 *
+	 * @param policy the I/O policy
+	 * @param probe true to find out what is available if not done yet, false to not run anything in the root shell
+	 * @return the prefix including a trailing space, empty if the policy doesn't ask for low priority or neither is available
+	 */
+	private static String getIoPriorityPrefix(IoPolicy policy, boolean probe) {
+		if (!policy.lowPriority) {
+			return "";
+		}
+
+		String prefix = ioPriorityPrefix;
+
+		if ((prefix == null) && !probe) {
+			return IO_PRIORITY_PREFIX;
+		}
+
+		if (prefix == null) {
+			if (executeCommand(IO_PRIORITY_PREFIX + "true")) {
+				prefix = IO_PRIORITY_PREFIX;
+			} else if (executeCommand("nice -n 19 true")) {
+				prefix = "nice -n 19 ";
+			} else {
+				prefix = "";
+			}
+
+			Log.d(TAG, "Prefix for low I/O priority: " + prefix);
+
+			ioPriorityPrefix = prefix;
+		}
+
+		return prefix;
+	}
+
+	/**
+	 * Executes a command on the command line
+	 *
+	 * Transient errors, that are IOExceptions and timeouts, are retried with backoff according to the shell policy
+	 * A timeout on opening the root shell isn't retried, it's most likely a pending su grant, so it counts as denial
+	 * After repeated root denials the circuit breaker opens and commands fail fast until the cooldown is over
+	 * Possible exceptions are only logged via Android logging, because they most probably don't even occur
+	 *
+	 * Commands may be executed more than once, so they should be idempotent
+	 *
+	 * @param command the command string
+	 * @return true if execution was successful, false otherwise
+	 */
+	private static boolean executeCommand(String command) {
+		return executeCommand(command, null);
+	}
+
+	/**
+	 * Executes a command on the command line and collects its output, see executeCommand(String)
+	 *
+	 * @param command the command string
+	 * @param output list the output lines are added to, only the lines of the last attempt are kept, null to ignore the output
+	 * @return true if execution was successful, false otherwise
+	 */
+	private static boolean executeCommand(String command, List<String> output) {
+		return executeCommand(command, output, shellPolicy.commandTimeout, true);
+	}
+
+	/**
+	 * Executes a command on the command line with a given timeout, see executeCommand(String)
+	 *
+	 * @param command the command string
+	 * @param output list the output lines are added to, only the lines of the last attempt are kept, null to ignore the output
+	 * @param timeout time in ms to wait for a single attempt
+	 * @param retryTimeouts false if a command that timed out must not be run again, e.g. because it moves a lot of data
+	 * @return true if execution was successful, false otherwise
+	 */
+	private static boolean executeCommand(String command, List<String> output, int timeout, boolean retryTimeouts) {
+		ShellPolicy policy = shellPolicy;
+		long backoff = policy.initialBackoff;
+
+		for (int attempt = 0; ; attempt++) {
+			if (!rootBreaker.allowRequest()) {
+				Log.d(TAG, "Circuit breaker is open, skipping executeCommand");
+				return false;
+			}
+
+			if (output != null) {
+				output.clear();
+			}
+
+			try {
+				boolean result = runCommand(command, timeout, output);
+				rootBreaker.onSuccess();
+				return result;
+			} catch (RootDeniedException e) {
+				// Retrying doesn't help if the user denied root, so let the circuit breaker decide
+				Log.d(TAG, "RootDeniedException on executeCommand");
+				rootBreaker.onRootDenied();
+				return false;
+			} catch (ShellTimeoutException e) {
+				// Retrying would only wait for the same su prompt again, so let the circuit breaker decide
+				Log.d(TAG, "ShellTimeoutException on executeCommand");
+				rootBreaker.onRootDenied();
+				return false;
+			} catch (IOException e) {
+				Log.d(TAG, "IOException on executeCommand, attempt " + (attempt + 1));
+			} catch (TimeoutException e) {
+				Log.d(TAG, "TimeoutException on executeCommand, attempt " + (attempt + 1));
+
+				if (!retryTimeouts) {
+					return false;
+				}
+			}
+
+			if (attempt >= policy.maxRetries) {
+				return false;
+			}
+
+			try { Thread.sleep(backoff); } catch (InterruptedException ignored) { }
+			backoff = (long) (backoff * policy.backoffMultiplier);
+		}
+	}
+
+	/**
+	 * Executes a command on the command line once
+	 *
+	 * @param command the command string
+	 * @param timeout time in ms to wait for the shell and the command to finish
+	 * @param output list the output lines are added to, null to ignore the output
+	 * @return true if the command returned exit code 0, false otherwise
+	 * @throws IOException if the shell is broken
+	 * @throws RootDeniedException if root access is denied
+	 * @throws ShellTimeoutException if the shell couldn't be opened in time, e.g. because su is still waiting for the grant
+	 * @throws TimeoutException if the command didn't finish in time
+	 */
+	private static boolean runCommand(String command, int timeout, final List<String> output) throws IOException, RootDeniedException, TimeoutException {
+		Command cmd = new Command(100, timeout, command) {
+			@Override
+			public void commandOutput(int id, String line) {
+				super.commandOutput(id, line);
+
+				if (output != null) {
+					// Called by the shell's reader thread
+					synchronized (output) {
+						output.add(line);
+					}
+				}
+			}
+		};
+
+		Shell shell;
+
+		try {
+			// Opening the shell doesn't take longer for long running commands
+			shell = RootTools.getShell(true, Math.min(timeout, shellPolicy.commandTimeout));
+		} catch (TimeoutException e) {
+			throw new ShellTimeoutException("Root shell didn't open within " + Math.min(timeout, shellPolicy.commandTimeout) + " ms");
+		}
+
+		shell.add(cmd);
+
+		int count = 0;
+
+		while (!cmd.isFinished() && (count < timeout / 100)) {
+			Log.d(TAG, "sleeping 100");
+			try { Thread.sleep(100); } catch (InterruptedException ignored) { }
+			count++;
+		}
+
+		if (!cmd.isFinished()) {
+			cmd.terminate();
+			throw new TimeoutException("Command didn't finish within " + timeout + " ms");
+		}
+
+		return cmd.getExitCode() == 0; // true if OK
+	}
+
+	/**
+	 * Starts a separate root process, for long running commands or commands streaming data
+	 * Such commands would block the RootTools shell for all other commands
+	 *
+	 * @param command the command string
+	 * @return the started process, the caller has to take care of its streams and to destroy it
+	 * @throws IOException if su couldn't be started or the circuit breaker is open
+	 */
+	private static Process startRootProcess(String command) throws IOException {
+		if (!rootBreaker.allowRequest()) {
+			throw new IOException("Circuit breaker is open, not starting su");
+		}
+
+		return Runtime.getRuntime().exec(new String[] {"su", "-c", command});
+	}
+
+	/**
+	 * RootTools.exists(...) guarded by the circuit breaker, like executeCommand(...), so it fails fast instead of blocking on su
+	 * RootTools doesn't tell a root denial from a failure, so only executeCommand(...) and gainRootAccess() report denials
+	 *
+	 * @param file full path of the file or directory
+	 * @param isDir true for a directory
+	 * @return true if it exists, false if it doesn't or the circuit breaker is open
+	 */
+	private static boolean rootExists(String file, boolean isDir) {
+		if (!rootBreaker.allowRequest()) {
+			Log.d(TAG, "Circuit breaker is open, skipping exists");
+			return false;
+		}
+
+		return RootTools.exists(file, isDir);
+	}
+
+	/**
+	 * RootTools.remount(...) guarded by the circuit breaker, see rootExists(...)
+	 *
+	 * @param path a path on the partition to be remounted
+	 * @param mountType "rw" or "ro"
+	 * @return true if remounted, false otherwise or if the circuit breaker is open
+	 */
+	private static boolean remount(String path, String mountType) {
+		if (!rootBreaker.allowRequest()) {
+			Log.d(TAG, "Circuit breaker is open, skipping remount");
+			return false;
+		}
+
+		return RootTools.remount(path, mountType);
+	}
+
+	/**
+	 * RootTools.copyFile(...) guarded by the circuit breaker, see rootExists(...)
+	 * The partition isn't remounted, file attributes are preserved
+	 *
+	 * @param source full path of the source file
+	 * @param destination full path of the destination file
+	 * @return true if copied, false otherwise or if the circuit breaker is open
+	 */
+	private static boolean copyFileWithRootTools(String source, String destination) {
+		if (!rootBreaker.allowRequest()) {
+			Log.d(TAG, "Circuit breaker is open, skipping copyFile");
+			return false;
+		}
+
+		return RootTools.copyFile(source, destination, false, true);
+	}
+
+	/**
+	 * RootTools.deleteFileOrDirectory(...) guarded by the circuit breaker, see rootExists(...)
+	 *
+	 * @param target full path of the file or directory
+	 * @param remountAsRw remount the partition read-write before and read-only afterwards
+	 * @return true if deleted, false otherwise or if the circuit breaker is open
+	 */
+	private static boolean deleteFileOrDirectory(String target, boolean remountAsRw) {
+		if (!rootBreaker.allowRequest()) {
+			Log.d(TAG, "Circuit breaker is open, skipping deleteFileOrDirectory");
+			return false;
+		}
+
+		return RootTools.deleteFileOrDirectory(target, remountAsRw);
+	}
+
+	/**
+	 * Waits for a process started by startRootProcess(...) to exit
+	 *
+	 * @param process the process
+	 * @return its exit code, -1 if interrupted
+	 */
+	private static int waitForExitCode(Process process) {
+		try {
+			return process.waitFor();
+		} catch (InterruptedException e) {
+			process.destroy();
+			return -1;
+		}
+	}
+
+	/**
+	 * Probes root and both APKs, this may take a while, so don't call it on the main thread
+	 *
+	 * @param context app context
+	 * @return the current status
+	 */
+	private static Status probeStatus(final Context context) {
+		String userAppInfo;
+		String systemAppInfo;
+
+		try {
+			userAppInfo = getApkInfos(context, false);
+		} catch (SystemAppUtilitiesException e) {
+			userAppInfo = e.getMessage();
+		}
+
+		try {
+			systemAppInfo = getApkInfos(context, true);
+		} catch (SystemAppUtilitiesException e) {
+			systemAppInfo = e.getMessage();
+		}
+
+		return new Status(isRootAvailable(), rootBreaker.getState(), userAppInfo, systemAppInfo);
+	}
+
+	/**
+	 * Evaluates which paths have to be watched to notice changes of the status
+	 *
+	 * @param context app context
+	 * @return paths to be watched
+	 */
+	private static List<Watch> getWatches(final Context context) {
+		List<Watch> watches = new ArrayList<Watch>();
+		String userAppFile = context.getApplicationInfo().sourceDir;
+
+		if (userAppFile.startsWith("/data/app/") && new File(userAppFile).exists()) {
+			if (android.os.Build.VERSION.SDK_INT < 20) { // Android 4.4: API 19, Android 5.0: API 21 (first with subfolders for apps)
+				watches.add(new Watch(userAppFile, null, false));
+			} else {
+				watches.add(new Watch(userAppFile.substring(0, userAppFile.lastIndexOf('/')), null, false));
+			}
+		} else {
+			// No user app, so wait for it to show up again, /data/app is only readable by root
+			watches.add(new Watch("/data/app", context.getPackageName(), false));
+		}
+
+		String systemAppsPath = systemAppFile.substring(0, systemAppFile.lastIndexOf('/'));
+		watches.add(new Watch(systemAppsPath, systemAppFile.substring(systemAppFile.lastIndexOf('/') + 1), false));
+
+		// Only the directory itself is of interest, its content changes all the time
+		watches.add(new Watch(context.getApplicationInfo().dataDir, null, true));
+
+		return watches;
+	}
+
+	/**
+	 * Operations that can be run without UI, see runOperation(...)
+	 */
+	public enum Operation {
+		INSTALL_SYSTEM_APP, UPDATE_SYSTEM_APP, INSTALL_SYSTEMLESS, UNINSTALL_SYSTEM_APP, UNINSTALL_USER_APP, CLEAR_APP_DATA, RECOVER_INTERRUPTED, ROLLBACK_SYSTEM_APP
+	}
+
+	/**
+	 * How the system app is written by installAsSystemApp(...)
+	 * COPY: the whole APK is copied
+	 * DELTA: a copy of an existing system APK is patched with the changed blocks and renamed over it, falls back to COPY if this isn't possible
+	 * SYSTEMLESS: nothing is written to the system partition, the APK is mounted to its system path at boot, needs Magisk
+	 */
+	public enum InstallMode {
+		COPY, DELTA, SYSTEMLESS
+	}
+
+	/**
+	 * Result of an operation run by runOperation(...) or runPlan(...)
+	 */
+	public static class OperationResult {
+		public final Operation operation;
+		public final long startedAt; // wall clock time in ms
+		public final long duration; // ms
+		public final String error; // null if successful
+		public final TransferStats transfer; // bytes copied and their throughput, null if nothing has been copied
+
+		public OperationResult(Operation operation, long startedAt, long duration, String error) {
+			this(operation, startedAt, duration, error, null);
+		}
+
+		public OperationResult(Operation operation, long startedAt, long duration, String error, TransferStats transfer) {
+			this.operation = operation;
+			this.startedAt = startedAt;
+			this.duration = duration;
+			this.error = error;
+			this.transfer = transfer;
+		}
+
+		public boolean isSuccessful() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * The steps an operation consists of, with their estimated costs, see planOperation(...)
+	 * Costs are estimated from the current file sizes, a round-trip is a command sent to the root shell
+	 * Probes are the round-trips already done while planning, they aren't counted in the costs
+	 */
+	public static class Plan {
+		public final Operation operation;
+		private final List<String> probes = new ArrayList<String>();
+		private final List<Step> steps = new ArrayList<Step>();
+		private final List<Step> finalSteps = new ArrayList<Step>(); // run at the end, even if a step failed
+		private final List<Integer> finalStepGuards = new ArrayList<Integer>(); // steps that must have succeeded for a final step to run
+		private long bytesRead = 0;
+		private long bytesWritten = 0;
+		private long bytesDeleted = 0;
+		private int roundTrips = 0;
+		private TransferStats transfer = null; // measured while running
+
+		Plan(Operation operation) {
+			this.operation = operation;
+		}
+
+		private void add(Step step) {
+			steps.add(step);
+			count(step);
+		}
+
+		/**
+		 * Adds a step that is run at the end, like a finally block, as long as all steps added before have succeeded
+		 * Final steps are run in reverse order, like nested finally blocks
+		 */
+		private void addFinal(Step step) {
+			finalSteps.add(0, step);
+			finalStepGuards.add(0, steps.size());
+			count(step);
+		}
+
+		private void addProbe(String description) {
+			probes.add(description);
+		}
+
+		private void count(Step step) {
+			bytesRead += step.bytesRead;
+			bytesWritten += step.bytesWritten;
+			bytesDeleted += step.bytesDeleted;
+			roundTrips += step.roundTrips;
+		}
+
+		/**
+		 * @return all steps in the order they are run
+		 */
+		public List<Step> getSteps() {
+			List<Step> all = new ArrayList<Step>(steps);
+			all.addAll(finalSteps);
+			return all;
+		}
+
+		/**
+		 * @return what has been looked at in the root shell while planning, as the app couldn't do it itself
+		 */
+		public List<String> getProbes() {
+			return probes;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		public long getBytesDeleted() {
+			return bytesDeleted;
+		}
+
+		public int getRoundTrips() {
+			return roundTrips;
+		}
+
+		/**
+		 * @return bytes actually copied and their throughput, null if nothing has been copied (yet)
+		 */
+		public TransferStats getTransfer() {
+			return transfer;
+		}
+
+		private void addTransfer(TransferStats stats) {
+			if (stats == null) {
+				return;
+			}
+
+			if (transfer == null) {
+				transfer = stats;
+			} else {
+				transfer = new TransferStats(transfer.rawBytes + stats.rawBytes, transfer.compressedBytes + stats.compressedBytes, transfer.duration + stats.duration);
+			}
+		}
+
+		private void execute() throws SystemAppUtilitiesException {
+			int succeeded = 0;
+
+			try {
+				for (Step step : steps) {
+					step.run();
+					succeeded++;
+				}
+			} finally {
+				for (int i = 0; i < finalSteps.size(); i++) {
+					if (succeeded < finalStepGuards.get(i)) {
+						continue;
+					}
+
+					try {
+						finalSteps.get(i).run();
+					} catch (SystemAppUtilitiesException e) {
+						Log.d(TAG, "Final step failed: " + e.getMessage());
+					}
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder(operation + ": " + bytesRead + " bytes read, " + bytesWritten + " bytes written, "
+					+ bytesDeleted + " bytes deleted, " + roundTrips + " round-trips, " + probes.size() + " probes while planning");
+
+			for (String probe : probes) {
+				text.append("\nProbe: ").append(probe);
+			}
+
+			for (Step step : getSteps()) {
+				text.append("\n").append(step);
+			}
+
+			return text.toString();
+		}
+	}
+
+	/**
+	 * A single step of a plan, see Plan
+	 */
+	public static abstract class Step {
+		public final String description;
+		public final String command; // the shell command run by this step, null if it's done in Java or by RootTools
+		public final long bytesRead;
+		public final long bytesWritten;
+		public final long bytesDeleted;
+		public final int roundTrips;
+
+		Step(String description, String command, long bytesRead, long bytesWritten, long bytesDeleted, int roundTrips) {
+			this.description = description;
+			this.command = command;
+			this.bytesRead = bytesRead;
+			this.bytesWritten = bytesWritten;
+			this.bytesDeleted = bytesDeleted;
+			this.roundTrips = roundTrips;
+		}
+
+		abstract void run() throws SystemAppUtilitiesException;
+
+		@Override
+		public String toString() {
+			return description + ((command != null) ? " [" + command + "]" : "") + ": " + bytesRead + " bytes read, "
+					+ bytesWritten + " bytes written, " + bytesDeleted + " bytes deleted, " + roundTrips + " round-trips";
+		}
+	}
+
+	/**
+	 * Result of a single app installed by installAsSystemApps(...)
+	 */
+	public static class BatchResult {
+		public final String app; // as given, package name or APK path
+		public String packageName = null;
+		public String apkFile = null;
+		public String systemAppFile = null;
+		public String digest = null; // SHA-256 of the APK
+		public long duration = 0; // ms spent copying
+		public TransferStats transfer = null; // bytes copied and their throughput
+		public String error = null; // null if successful
+
+		BatchResult(String app) {
+			this.app = app;
+		}
+
+		public boolean isSuccessful() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * Sizes and throughput of a backup or restore, see backupAppData(...), or of a copy, then both sizes are the same
+	 */
+	public static class TransferStats {
+		public final long rawBytes; // size of the tar stream
+		public final long compressedBytes; // size of the backup
+		public final long duration; // ms
+
+		public TransferStats(long rawBytes, long compressedBytes, long duration) {
+			this.rawBytes = rawBytes;
+			this.compressedBytes = compressedBytes;
+			this.duration = duration;
+		}
+
+		/**
+		 * @return uncompressed bytes per second
+		 */
+		public long getThroughput() {
+			return (duration > 0) ? rawBytes * 1000 / duration : rawBytes;
+		}
+
+		@Override
+		public String toString() {
+			return rawBytes + " bytes, " + compressedBytes + " bytes compressed, " + duration + " ms, " + getThroughput() + " bytes/s";
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+
+			if (b != -1) {
+				count++;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+
+			if (read > 0) {
+				count += read;
+			}
+
+			return read;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Drains the error stream of a process in the background, so the process doesn't block on a full pipe
+	 * Only the beginning is kept for error messages
+	 */
+	private static class ErrorCollector extends Thread {
+		private static final int MAX_LENGTH = 1024;
+
+		private final Process process;
+		private final StringBuilder errors = new StringBuilder();
+
+		ErrorCollector(Process process) {
+			super(TAG + "-Errors");
+			this.process = process;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			BufferedReader in = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+
+			try {
+				String line;
+
+				while ((line = in.readLine()) != null) {
+					synchronized (errors) {
+						if (errors.length() < MAX_LENGTH) {
+							errors.append(line).append('\n');
+						}
+					}
+				}
+			} catch (IOException ignored) { }
+		}
+
+		String getErrors() {
+			try { join(1000); } catch (InterruptedException ignored) { }
+
+			synchronized (errors) {
+				return errors.toString().trim();
+			}
+		}
+	}
+
+	/**
+	 * Listener for status updates, see subscribeStatus(...)
+	 */
+	public interface StatusListener {
+		/**
+		 * Called on the main thread whenever the status changed
+		 *
+		 * @param status the new status
+		 */
+		void onStatusChanged(Status status);
+	}
+
+	/**
+	 * Immutable snapshot of root availability and the user and system app infos
+	 */
+	public static class Status {
+		public final boolean rootAvailable;
+		public final BreakerState rootBreakerState;
+		public final String userAppInfo;
+		public final String systemAppInfo;
+
+		public Status(boolean rootAvailable, BreakerState rootBreakerState, String userAppInfo, String systemAppInfo) {
+			this.rootAvailable = rootAvailable;
+			this.rootBreakerState = rootBreakerState;
+			this.userAppInfo = userAppInfo;
+			this.systemAppInfo = systemAppInfo;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+
+			if (!(o instanceof Status)) {
+				return false;
+			}
+
+			Status other = (Status) o;
+
+			return (rootAvailable == other.rootAvailable) && (rootBreakerState == other.rootBreakerState) && equal(userAppInfo, other.userAppInfo) && equal(systemAppInfo, other.systemAppInfo);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = rootAvailable ? 1 : 0;
+			result = 31 * result + rootBreakerState.hashCode();
+			result = 31 * result + (userAppInfo != null ? userAppInfo.hashCode() : 0);
+			result = 31 * result + (systemAppInfo != null ? systemAppInfo.hashCode() : 0);
+			return result;
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return (a == null) ? (b == null) : a.equals(b);
+		}
+	}
+
+	/**
+	 * Retry and circuit breaker settings for root shell commands
+	 */
+	public static class ShellPolicy {
+		public static final ShellPolicy DEFAULT = new ShellPolicy(2, 500, 2f, 10000, 3, 60000);
+
+		public final int maxRetries; // retries after the first attempt, for IOExceptions and command timeouts only, not for opening the shell
+		public final long initialBackoff; // ms to wait before the first retry
+		public final float backoffMultiplier; // factor the backoff grows by with each retry
+		public final int commandTimeout; // ms to wait for a single attempt
+		public final int breakerThreshold; // consecutive root denials until the circuit breaker opens
+		public final long breakerCooldown; // ms the circuit breaker stays open before allowing a new attempt
+
+		public ShellPolicy(int maxRetries, long initialBackoff, float backoffMultiplier, int commandTimeout, int breakerThreshold, long breakerCooldown) {
+			this.maxRetries = maxRetries;
+			this.initialBackoff = initialBackoff;
+			this.backoffMultiplier = backoffMultiplier;
+			this.commandTimeout = commandTimeout;
+			this.breakerThreshold = breakerThreshold;
+			this.breakerCooldown = breakerCooldown;
+		}
+	}
+
+	/**
+	 * I/O policy for copying and deleting app files, see setIoPolicy(...)
+	 * Low priority and a bandwidth cap leave more of the storage to the foreground app, at the cost of slower operations
+	 */
+	public static class IoPolicy {
+		public static final IoPolicy DEFAULT = new IoPolicy(false, 0);
+		public static final IoPolicy BACKGROUND = new IoPolicy(true, 0);
+
+		public final boolean lowPriority; // lowest I/O and CPU priority, if ionice and nice are available
+		public final long maxBytesPerSecond; // cap for copying APKs, 0 for none, copies are then split into chunks of about a second
+
+		public IoPolicy(boolean lowPriority, long maxBytesPerSecond) {
+			this.lowPriority = lowPriority;
+			this.maxBytesPerSecond = maxBytesPerSecond;
+		}
+	}
+
+	/**
+	 * State of the circuit breaker guarding root access
+	 * CLOSED: root requests pass, OPEN: root requests fail fast, HALF_OPEN: a single trial request passes
+	 */
+	public enum BreakerState {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Circuit breaker that stops asking for root after repeated denials, so nobody waits for a shell that won't come
+	 */
+	private static class CircuitBreaker {
+		private BreakerState state = BreakerState.CLOSED;
+		private int denials = 0;
+		private long openedAt = 0;
+
+		boolean allowRequest() {
+			boolean changed = false;
+			boolean allowed;
+
+			synchronized (this) {
+				if ((state == BreakerState.OPEN) && (getRemainingCooldown() <= 0)) {
+					changed = setState(BreakerState.HALF_OPEN);
+				}
+
+				allowed = state != BreakerState.OPEN;
+			}
+
+			notifyIfChanged(changed);
+
+			return allowed;
+		}
+
+		void onSuccess() {
+			boolean changed;
+
+			synchronized (this) {
+				denials = 0;
+				changed = setState(BreakerState.CLOSED);
+			}
+
+			notifyIfChanged(changed);
+		}
+
+		void onRootDenied() {
+			boolean changed = false;
+
+			synchronized (this) {
+				denials++;
+
+				if ((state == BreakerState.HALF_OPEN) || (denials >= shellPolicy.breakerThreshold)) {
+					openedAt = System.currentTimeMillis();
+					changed = setState(BreakerState.OPEN);
+				}
+			}
+
+			notifyIfChanged(changed);
+		}
+
+		synchronized BreakerState getState() {
+			return state;
+		}
+
+		synchronized long getRemainingCooldown() {
+			return (state == BreakerState.OPEN) ? Math.max(0, openedAt + shellPolicy.breakerCooldown - System.currentTimeMillis()) : 0;
+		}
+
+		/**
+		 * Must be called holding the lock, the status watcher is only notified after releasing it, see notifyIfChanged(...)
+		 *
+		 * @param newState the new state
+		 * @return true if the state changed
+		 */
+		private boolean setState(BreakerState newState) {
+			if (state == newState) {
+				return false;
+			}
+
+			Log.d(TAG, "Root circuit breaker " + state + " -> " + newState);
+			state = newState;
+
+			return true;
+		}
+
+		/**
+		 * Refreshes the status after a state change, never holding the lock, as the status watcher
+		 * holds its own lock while probing, which asks the breaker again, so the other order would deadlock
+		 *
+		 * @param changed result of setState(...)
+		 */
+		private void notifyIfChanged(boolean changed) {
+			if (changed) {
+				statusWatcher.refresh(0);
+			}
+		}
+	}
+
+	/**
+	 * A path to be watched
+	 * filter restricts events in a directory to children starting with it, null for all children
+	 * selfOnly restricts events to the path itself being deleted or moved
+	 */
+	private static class Watch {
+		final String path;
+		final String filter;
+		final boolean selfOnly;
+
+		Watch(String path, String filter, boolean selfOnly) {
+			this.path = path;
+			this.filter = filter;
+			this.selfOnly = selfOnly;
+		}
+
+		int getObserverMask() {
+			int mask = FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+			if (!selfOnly) {
+				mask |= FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB;
+			}
+
+			return mask;
+		}
+
+		String getInotifydMask() {
+			return selfOnly ? "DM" : "DMndmywe";
+		}
+
+		boolean matches(String name) {
+			return (filter == null) || (name == null) || name.startsWith(filter);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Watch)) {
+				return false;
+			}
+
+			Watch other = (Watch) o;
+
+			return path.equals(other.path) && ((filter == null) ? (other.filter == null) : filter.equals(other.filter)) && (selfOnly == other.selfOnly);
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode();
+		}
+	}
+
+	/**
+	 * Keeps the status up to date by watching the relevant paths and notifies the listeners about changes
+	 * Probing is done on a background thread, events are collapsed so a burst of file changes leads to a single probe
+	 */
+	private static class StatusWatcher {
+		private static final long EVENT_DELAY = 300; // ms
+
+		private final List<StatusListener> listeners = new ArrayList<StatusListener>();
+		private final List<FileObserver> observers = new ArrayList<FileObserver>();
+		private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+		private Context context = null;
+		private HandlerThread thread = null;
+		private Handler handler = null;
+		private Status status = null;
+		private List<Watch> watches = null;
+		private Process rootWatcher = null;
+
+		private final Runnable probe = new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		};
+
+		synchronized void subscribe(final Context context, final StatusListener listener) {
+			this.context = context;
+			listeners.add(listener);
+
+			if (thread == null) {
+				thread = new HandlerThread(TAG + "-Status", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				thread.start();
+				handler = new Handler(thread.getLooper());
+				handler.post(probe);
+			} else if (status != null) {
+				final Status current = status;
+
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (isSubscribed(listener)) {
+							listener.onStatusChanged(current);
+						}
+					}
+				});
+			}
+		}
+
+		synchronized void unsubscribe(final StatusListener listener) {
+			listeners.remove(listener);
+
+			if (listeners.isEmpty() && (thread != null)) {
+				stopWatching();
+				thread.quit();
+				thread = null;
+				handler = null;
+				status = null;
+			}
+		}
+
+		synchronized void refresh(long delay) {
+			if (handler != null) {
+				handler.removeCallbacks(probe);
+				handler.postDelayed(probe, delay);
+			}
+		}
+
+		synchronized Status getStatus() {
+			return status;
+		}
+
+		private synchronized boolean isSubscribed(StatusListener listener) {
+			return listeners.contains(listener);
+		}
+
+		private synchronized void onWatchEvent(boolean selfEvent) {
+			if (selfEvent) {
+				// The watch is gone together with the path, so it has to be set up again
+				watches = null;
+			}
+
+			refresh(EVENT_DELAY);
+		}
+
+		private void probe() {
+			Context context;
+
+			synchronized (this) {
+				context = this.context;
+			}
+
+			final Status newStatus = probeStatus(context);
+			List<Watch> newWatches = getWatches(context);
+
+			synchronized (this) {
+				if (thread == null) {
+					return; // unsubscribed in the meantime
+				}
+
+				if (!newWatches.equals(watches)) {
+					stopWatching();
+					startWatching(newWatches);
+				}
+
+				if (newStatus.equals(status)) {
+					return;
+				}
+
+				status = newStatus;
+
+				for (final StatusListener listener : listeners) {
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (isSubscribed(listener)) {
+								listener.onStatusChanged(newStatus);
+							}
+						}
+					});
+				}
+			}
+		}
+
+		private void startWatching(List<Watch> newWatches) {
+			List<Watch> rootWatches = new ArrayList<Watch>();
+
+			for (final Watch watch : newWatches) {
+				File file = new File(watch.path);
+
+				if (!file.exists() || !file.canRead()) {
+					rootWatches.add(watch);
+					continue;
+				}
+
+				FileObserver observer = new FileObserver(watch.path, watch.getObserverMask()) {
+					@Override
+					public void onEvent(int event, String path) {
+						if (watch.matches(path)) {
+							onWatchEvent((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0);
+						}
+					}
+				};
+
+				observer.startWatching();
+				observers.add(observer);
+			}
+
+			if (!rootWatches.isEmpty() && isRootAvailable()) {
+				startRootWatcher(rootWatches);
+			}
+
+			watches = newWatches;
+		}
+
+		private void startRootWatcher(final List<Watch> rootWatches) {
+			StringBuilder command = new StringBuilder("exec inotifyd -");
+
+			for (Watch watch : rootWatches) {
+				command.append(' ').append(watch.path).append(':').append(watch.getInotifydMask());
+			}
+
+			Log.d(TAG, "Using a root-side watcher: " + command);
+
+			final Process process;
+
+			try {
+				process = startRootProcess(command.toString());
+			} catch (IOException e) {
+				Log.d(TAG, "IOException on starting the root-side watcher");
+				return;
+			}
+
+			rootWatcher = process;
+
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+					try {
+						String line;
+
+						// inotifyd prints one line per event: events, path and, for directories, the name of the child
+						while ((line = in.readLine()) != null) {
+							String[] fields = line.split("\t");
+
+							if (fields.length < 2) {
+								continue;
+							}
+
+							for (Watch watch : rootWatches) {
+								if (watch.path.equals(fields[1]) && watch.matches((fields.length > 2) ? fields[2] : null)) {
+									onWatchEvent(fields[0].contains("D") || fields[0].contains("M"));
+								}
+							}
+						}
+					} catch (IOException ignored) { }
+
+					Log.d(TAG, "Root-side watcher finished, is inotifyd available?");
+				}
+			}, TAG + "-RootWatcher");
+
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void stopWatching() {
+			for (FileObserver observer : observers) {
+				observer.stopWatching();
+			}
+
+			observers.clear();
+
+			if (rootWatcher != null) {
+				rootWatcher.destroy();
+				rootWatcher = null;
+			}
+
+			watches = null;
+		}
+	}
+
+	/**
+	 * Thrown by runCommand(...) if the root shell couldn't be opened in time, unlike a command that didn't finish
+	 */
+	private static class ShellTimeoutException extends TimeoutException {
+		ShellTimeoutException(String message) {
+			super(message);
+		}
 	}
 
 	/**